@@ -174,6 +174,8 @@ sub getWorkflowConfig {
 	 ['workflowStepTrackingTable', "", ""],
 	 ['maxRunningPerStepClass', "", ""],
 	 ['maxFailedPerStepClass', "", ""],
+	 ['incrementalSnapshot', "false", "true if the step table has change_seq (see addStepChangeSeq.sql)"],
+	 ['changeSeqOverlap', "100", "incremental snapshots re-read this many change_seq values below the highest read"],
 	);
 
     if (!$self->{workflowConfig}) {
@@ -283,6 +285,28 @@ sub getId {
   return $self->{workflow_id};
 }
 
+# wake up the controller so it sees a step change right away.  it watches
+# the signals/ dir; if that dir is absent the controller is polling anyway
+sub signalController {
+    my ($self, $stepId) = @_;
+
+    my $signalDir = "$self->{homeDir}/signals";
+    return unless -d $signalDir;
+    open(my $fh, '>', "$signalDir/$stepId") && close($fh);
+}
+
+# sql fragment that bumps a step row's change_seq, so that a controller doing
+# incremental snapshots reads the row.  empty unless incrementalSnapshot=true
+sub getChangeStampSql {
+    my ($self) = @_;
+
+    return "" unless $self->getWorkflowConfig('incrementalSnapshot') eq 'true';
+    my $sequence = $self->getWorkflowConfig('workflowStepTable') . "Change_sq";
+    my $dbName = ($self->{dbName} eq '') ? $self->getGusConfig('dbiDsn') : $self->{dbName};
+    my $nextval = ($dbName =~ /^dbi:Oracle/i)? "$sequence.nextval" : "nextval('$sequence')";
+    return ",\n  change_seq = $nextval";
+}
+
 sub runCmd {
     my ($self, $cmd) = @_;
 
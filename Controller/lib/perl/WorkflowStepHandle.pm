@@ -893,6 +893,7 @@ sub setDbState {
 
     my $undoStr2 = ($undo && $state eq $DONE)? "\nstate = '$READY'," : "";
     my $workflowStepTable = $self->getWorkflowConfig('workflowStepTable');
+    my $changeStamp = $self->{workflow}->getChangeStampSql();
     my $sql = "
 UPDATE $workflowStepTable
 SET
@@ -900,11 +901,12 @@ SET
   process_id = NULL,
   skipped = $skipped,
   end_time = LOCALTIMESTAMP, $undoStr2
-  ${undoStr}state_handled = 0
+  ${undoStr}state_handled = 0$changeStamp
 WHERE workflow_step_id = $self->{id}
 AND ${undoStr}state in ($allowedCurrentStates)
 ";
     $self->{workflow}->_runSql($sql);
+    $self->{workflow}->signalController($self->{id});
 }
 
 sub setRunningState {
@@ -915,6 +917,7 @@ sub setRunningState {
 
     my $undoStr = $undo? "undo_" : "";
     my $workflowStepTable = $self->getWorkflowConfig('workflowStepTable');
+    my $changeStamp = $self->{workflow}->getChangeStampSql();
     my $sql = "
 UPDATE $workflowStepTable
 SET
@@ -924,11 +927,12 @@ SET
   skipped = 0,
   host_machine = '$hostname',
   start_time = LOCALTIMESTAMP,
-  end_time = NULL
+  end_time = NULL$changeStamp
 WHERE workflow_step_id = $self->{id}
 ";
 
     $self->{workflow}->_runSql($sql);
+    $self->{workflow}->signalController($self->{id});
 }
 
 sub maybeSendAlert {
@@ -52,16 +52,18 @@ sub pilotSetReady {
     return 0 unless $isFailed;
 
     my $workflowStepTable = $self->{workflow}->getWorkflowConfig('workflowStepTable');
+    my $changeStamp = $self->{workflow}->getChangeStampSql();
     my $sql = "
 UPDATE $workflowStepTable
 SET 
   $self->{undo}state = '$READY',
   process_id = NULL,
-  $self->{undo}state_handled = 0
+  $self->{undo}state_handled = 0$changeStamp
 WHERE workflow_step_id = $self->{workflow_step_id}
 AND $self->{undo}state IN ('$FAILED', 'RUNNING')
 ";
     $self->runSql($sql);
+    $self->{workflow}->signalController($self->{workflow_step_id});
     $self->pilotLog("Step '$self->{name}' set to $READY");
 
     return 0;
@@ -82,16 +84,18 @@ sub pilotSetOffline {
     my $offline_bool = $offline eq 'offline'? 1 : 0;
 
     my $workflowStepTable = $self->{workflow}->getWorkflowConfig('workflowStepTable');
+    my $changeStamp = $self->{workflow}->getChangeStampSql();
     my $sql = "
 UPDATE $workflowStepTable
 SET
   $self->{undo}off_line = $offline_bool,
-  $self->{undo}state_handled = 0
+  $self->{undo}state_handled = 0$changeStamp
 WHERE workflow_step_id = $self->{workflow_step_id}
 AND $self->{undo}state != '$RUNNING'
 AND $self->{undo}state != '$DONE'
 ";
     $self->runSql($sql);
+    $self->{workflow}->signalController($self->{workflow_step_id});
     $self->pilotLog("Step '$self->{name}' $offline");
     return 0;
 }
@@ -119,15 +123,17 @@ sub pilotSetStopAfter {
     }
 
     my $workflowStepTable = $self->{workflow}->getWorkflowConfig('workflowStepTable');
+    my $changeStamp = $self->{workflow}->getChangeStampSql();
     my $sql = "
 UPDATE $workflowStepTable
 SET
   $self->{undo}stop_after = $stopafter_bool,
-  $self->{undo}state_handled = 0
+  $self->{undo}state_handled = 0$changeStamp
 WHERE workflow_step_id = $self->{workflow_step_id}
 $and_clause
 ";
     $self->runSql($sql);
+    $self->{workflow}->signalController($self->{workflow_step_id});
     $self->pilotLog("Step '$self->{name}' $stopafter");
     return 0;
 }
@@ -0,0 +1,13 @@
+-- upgrade an existing reflow schema for incrementalSnapshot=true in workflow.prop.
+-- (new installs get this from installReflowSchema.sql)
+
+ALTER TABLE apidb.WorkflowStep ADD change_seq NUMERIC(12);
+
+CREATE INDEX WorkflowStep_chgix
+  ON apidb.WorkflowStep (workflow_id, change_seq);
+
+-- on Oracle RAC add ORDER, so values from different instances are in order
+CREATE SEQUENCE apidb.WorkflowStepChange_sq;
+
+GRANT SELECT ON apidb.WorkflowStepChange_sq TO gus_r;
+GRANT SELECT ON apidb.WorkflowStepChange_sq TO gus_w;
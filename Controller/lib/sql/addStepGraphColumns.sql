@@ -0,0 +1,9 @@
+-- upgrade an existing reflow schema for the graph the controller keeps in the
+-- db (read by workflow -d).  the controller writes these columns, so run this
+-- before starting it.  (new installs get this from installReflowSchema.sql)
+
+ALTER TABLE apidb.WorkflowStep ADD source_xml varchar(500);
+ALTER TABLE apidb.WorkflowStep ADD subgraph_xml varchar(500);
+
+ALTER TABLE apidb.WorkflowStepDependency ADD child_order NUMERIC(6);
+ALTER TABLE apidb.WorkflowStepDependency ADD parent_order NUMERIC(6);
@@ -50,7 +50,10 @@ create table apidb.WorkflowStep (
   step_class          varchar(200),
   params_digest       varchar(100),
   depends_string      TEXT,
-  depth_first_order   NUMERIC(6)
+  depth_first_order   NUMERIC(6),
+  change_seq          NUMERIC(12),  -- from WorkflowStepChange_sq, bumped on every change (if incrementalSnapshot=true)
+  source_xml          varchar(500), -- the graph file the step is in
+  subgraph_xml        varchar(500)  -- the graph file a subgraph step calls
 );
 
 ALTER TABLE apidb.WorkflowStep
@@ -82,14 +85,28 @@ CREATE SEQUENCE apidb.WorkflowStep_sq;
 GRANT SELECT ON apidb.WorkflowStep_sq TO gus_r;
 GRANT SELECT ON apidb.WorkflowStep_sq TO gus_w;
 
+CREATE INDEX WorkflowStep_chgix
+  ON apidb.WorkflowStep (workflow_id, change_seq);
+
+-- on Oracle RAC add ORDER, so values from different instances are in order
+CREATE SEQUENCE apidb.WorkflowStepChange_sq;
+
+GRANT SELECT ON apidb.WorkflowStepChange_sq TO gus_r;
+GRANT SELECT ON apidb.WorkflowStepChange_sq TO gus_w;
+
 -----------------------------------------------------------
 
--- this table is not used yet.  might be needed by pilot GUI
+-- the parent/child links of the expanded graph, one row per link.  written by
+-- the controller when it starts (workflow.prop workflowStepDependencyTable,
+-- default <workflowStepTable>Dependency), so tools can read the graph
+-- without building it from the XML
 
 create table apidb.WorkflowStepDependency (
   workflow_step_dependency_id NUMERIC(10),
   parent_id NUMERIC(10),
-  child_id NUMERIC(10)
+  child_id NUMERIC(10),
+  child_order NUMERIC(6),  -- the link's place among the parent's children
+  parent_order NUMERIC(6)  -- and among the child's parents
 );
 
 ALTER TABLE apidb.WorkflowStepDependency
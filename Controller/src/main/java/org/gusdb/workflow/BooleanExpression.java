@@ -0,0 +1,179 @@
+package org.gusdb.workflow;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.script.ScriptException;
+
+import org.gusdb.fgputil.script.JavaScript;
+
+/*
+ * Evaluates includeIf and excludeIf expressions.  After substitution these
+ * are constant, and nearly always simple, eg:
+ *     true
+ *     'proteome' == 'genome'
+ *     !(false || 'x' != '') && true
+ * so we evaluate them ourselves, and only hand the rest to the JavaScript
+ * interpreter.  Results are remembered by expression, since every instance of
+ * a subgraph has the same ones, and each is checked before it is evaluated.
+ *
+ * Handled here: true, false, 'strings', "strings", numbers, parentheses,
+ * !, &&, ||, ==, !=, === and !==.  Operands of !, && and || must be
+ * boolean, and comparisons must be between values of the same type, so we
+ * never have to copy JavaScript's type conversions.  Numbers must be plain
+ * decimals; 010 is octal (8) to the interpreter.  Anything else (including
+ * a syntax error) goes to the interpreter, which decides.
+ */
+class BooleanExpression {
+
+    private static final int MAX_CACHED = 10000;
+    private static final Map<String, Boolean> results = new ConcurrentHashMap<String, Boolean>();
+    private static final JavaScript javaScriptInterpreter = new JavaScript();
+
+    private static class Unsupported extends Exception {
+        private static final long serialVersionUID = 1L;
+    }
+
+    private static final Unsupported UNSUPPORTED = new Unsupported();
+
+    static boolean evaluate(String expression) throws ScriptException {
+        Boolean result = results.get(expression);
+        if (result == null) {
+            try {
+                result = new BooleanExpression(expression).parse();
+            }
+            catch (Unsupported e) {
+                // the interpreter isn't thread safe, and subgraphs are expanded in parallel
+                synchronized (javaScriptInterpreter) {
+                    result = javaScriptInterpreter.evaluateBooleanExpression(expression);
+                }
+            }
+            if (results.size() >= MAX_CACHED) results.clear();
+            results.put(expression, result);
+        }
+        return result;
+    }
+
+    private final String s;
+    private int pos;
+
+    private BooleanExpression(String expression) {
+        s = expression;
+    }
+
+    private boolean parse() throws Unsupported {
+        Object value = or();
+        skipSpace();
+        if (pos != s.length()) throw UNSUPPORTED;
+        return bool(value);
+    }
+
+    private Object or() throws Unsupported {
+        Object value = and();
+        while (accept("||")) {
+            boolean left = bool(value);
+            boolean right = bool(and());
+            value = left || right;
+        }
+        return value;
+    }
+
+    private Object and() throws Unsupported {
+        Object value = comparison();
+        while (accept("&&")) {
+            boolean left = bool(value);
+            boolean right = bool(comparison());
+            value = left && right;
+        }
+        return value;
+    }
+
+    // as in JavaScript, ! binds tighter than ==, so !a == b is (!a) == b
+    private Object comparison() throws Unsupported {
+        Object left = not();
+        boolean equal;
+        // longest first
+        if (accept("===") || accept("==")) equal = true;
+        else if (accept("!==") || accept("!=")) equal = false;
+        else return left;
+        Object right = not();
+        if (left.getClass() != right.getClass()) throw UNSUPPORTED;
+        return left.equals(right) == equal;
+    }
+
+    private Object not() throws Unsupported {
+        if (accept("!")) return !bool(not());
+        return primary();
+    }
+
+    private Object primary() throws Unsupported {
+        skipSpace();
+        if (pos == s.length()) throw UNSUPPORTED;
+        char c = s.charAt(pos);
+        if (c == '(') {
+            pos++;
+            Object value = or();
+            if (!accept(")")) throw UNSUPPORTED;
+            return value;
+        }
+        if (c == '\'' || c == '"') return string(c);
+        if (Character.isDigit(c)) return number();
+        if (acceptWord("true")) return Boolean.TRUE;
+        if (acceptWord("false")) return Boolean.FALSE;
+        throw UNSUPPORTED;
+    }
+
+    private String string(char quote) throws Unsupported {
+        StringBuilder sb = new StringBuilder();
+        pos++;
+        while (pos < s.length()) {
+            char c = s.charAt(pos++);
+            if (c == quote) return sb.toString();
+            if (c == '\\') throw UNSUPPORTED;  // escapes: let the interpreter do them
+            sb.append(c);
+        }
+        throw UNSUPPORTED;  // unterminated
+    }
+
+    private Double number() throws Unsupported {
+        int start = pos;
+        if (s.charAt(pos) == '0' && pos + 1 < s.length() && Character.isDigit(s.charAt(pos + 1)))
+            throw UNSUPPORTED;  // eg, 010, which is octal
+        while (pos < s.length() && (Character.isDigit(s.charAt(pos)) || s.charAt(pos) == '.')) pos++;
+        if (pos < s.length() && Character.isLetter(s.charAt(pos))) throw UNSUPPORTED;  // eg, 1e3, 0x1
+        try {
+            return Double.valueOf(s.substring(start, pos));
+        }
+        catch (NumberFormatException e) {
+            throw UNSUPPORTED;
+        }
+    }
+
+    private static boolean bool(Object value) throws Unsupported {
+        if (!(value instanceof Boolean)) throw UNSUPPORTED;
+        return (Boolean) value;
+    }
+
+    private void skipSpace() {
+        while (pos < s.length() && Character.isWhitespace(s.charAt(pos))) pos++;
+    }
+
+    private boolean accept(String token) {
+        skipSpace();
+        if (!s.startsWith(token, pos)) return false;
+        // don't take "!" from "!=", or "==" from "==="
+        int end = pos + token.length();
+        if (token.equals("!") && s.startsWith("=", end)) return false;
+        if (token.endsWith("=") && s.startsWith("=", end)) return false;
+        pos = end;
+        return true;
+    }
+
+    private boolean acceptWord(String word) {
+        if (!s.startsWith(word, pos)) return false;
+        int end = pos + word.length();
+        if (end < s.length() && Character.isJavaIdentifierPart(s.charAt(end))) return false;
+        pos = end;
+        return true;
+    }
+}
@@ -0,0 +1,276 @@
+package org.gusdb.workflow;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.CodeSource;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import org.gusdb.workflow.xml.WorkflowClassFactory;
+import org.gusdb.workflow.xml.WorkflowXmlParser;
+
+/*
+ * Keeps the fully expanded graph in cache/compiledGraph.bin, so commands
+ * that need the graph (-r, -t, -c, -d, IllegalGraphReport) don't have to
+ * parse, validate and expand every graph file each time.
+ *
+ * The file starts with a SHA-256 key over everything the graph is built from:
+ *   - config/workflow.prop, rootParams.prop, stepsShared.prop and the
+ *     throttle files (their types are checked during construction)
+ *   - every file under $GUS_HOME/lib/xml/workflow (includes the optional
+ *     subgraph files that excludeIfXmlFileDoesNotExist looks for)
+ *   - $GUS_HOME/lib/rng/workflow.rng
+ *   - the ReFlow jars, and FORMAT_VERSION
+ * If the key matches, the graph is read from the file.  Otherwise (or if the
+ * file can't be read) the graph is built from the XML as before, and the
+ * file rewritten.  The graph itself is written by WorkflowGraph.writeCompiled.
+ *
+ * Bump FORMAT_VERSION whenever what is written changes.
+ *
+ * Set the system property reflow.graphCache=false to always build from XML.
+ */
+class CompiledGraphCache {
+
+    static final String CACHE_DIR = "cache";
+    static final String CACHE_PROPERTY = "reflow.graphCache";
+
+    private static final String CACHE_FILE = "compiledGraph.bin";
+    private static final int MAGIC = 0x52464C47;  // "RFLG"
+    private static final int FORMAT_VERSION = 1;
+    private static final String[] CONFIG_FILES = { "workflow.prop", "rootParams.prop",
+            "stepsShared.prop", Workflow.LOAD_THROTTLE_FILE, Workflow.FAIL_THROTTLE_FILE };
+
+    private final Workflow<?> workflow;
+    private final File file;
+    private byte[] key;
+
+    CompiledGraphCache(Workflow<?> workflow) {
+        this.workflow = workflow;
+        this.file = new File(workflow.getHomeDir() + "/" + CACHE_DIR + "/" + CACHE_FILE);
+    }
+
+    static boolean isEnabled() {
+        return !"false".equals(System.getProperty(CACHE_PROPERTY));
+    }
+
+    // the cached graph, or null if there is none that matches our inputs
+    <S extends WorkflowStep> WorkflowGraph<S> load(
+            WorkflowClassFactory<S, WorkflowGraph<S>> classFactory, Workflow<S> workflow) throws IOException {
+        if (!file.exists()) return null;
+        try (Input in = new Input(new BufferedInputStream(new FileInputStream(file)))) {
+            if (in.readInt() != MAGIC || in.readInt() != FORMAT_VERSION) return null;
+            byte[] fileKey = new byte[getKey().length];
+            in.readFully(fileKey);
+            if (!Arrays.equals(fileKey, getKey())) return null;
+            WorkflowGraph<S> graph = WorkflowGraph.readCompiled(in, classFactory, workflow);
+            if (in.readInt() != MAGIC) return null;  // truncated
+            System.err.println("Using compiled graph " + file);
+            return graph;
+        }
+        catch (IOException | RuntimeException e) {
+            System.err.println("Ignoring unreadable compiled graph " + file + ": " + e);
+            return null;
+        }
+    }
+
+    // failing to write the cache is not fatal; we just build from XML next time
+    void save(WorkflowGraph<? extends WorkflowStep> graph) {
+        try {
+            file.getParentFile().mkdirs();
+            // write a temp file and move it into place, so a concurrent reader
+            // never sees half a graph
+            File tmp = File.createTempFile(CACHE_FILE, ".tmp", file.getParentFile());
+            try {
+                try (Output out = new Output(new BufferedOutputStream(new FileOutputStream(tmp)))) {
+                    out.writeInt(MAGIC);
+                    out.writeInt(FORMAT_VERSION);
+                    out.write(getKey());
+                    graph.writeCompiled(out);
+                    out.writeInt(MAGIC);
+                }
+                Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            }
+            finally {
+                tmp.delete();
+            }
+        }
+        catch (IOException e) {
+            System.err.println("Warning: can't write compiled graph " + file + ": " + e);
+        }
+    }
+
+    private byte[] getKey() throws IOException {
+        if (key == null) key = computeKey();
+        return key;
+    }
+
+    private byte[] computeKey() throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        }
+        catch (NoSuchAlgorithmException e) {
+            throw new IOException(e);
+        }
+        update(digest, "format " + FORMAT_VERSION);
+
+        for (String configFile : CONFIG_FILES)
+            updateWithFile(digest, "config/" + configFile,
+                    new File(workflow.getHomeDir() + "/config/" + configFile).toPath());
+
+        String gusHome = System.getProperty("GUS_HOME");
+        update(digest, gusHome);
+        updateWithFile(digest, "workflow.rng", new File(gusHome + "/lib/rng/workflow.rng").toPath());
+        Path xmlDir = new File(gusHome + "/lib/xml/workflow").toPath();
+        if (Files.isDirectory(xmlDir)) {
+            List<Path> xmlFiles;
+            try (Stream<Path> paths = Files.walk(xmlDir)) {
+                xmlFiles = paths.filter(Files::isRegularFile).sorted().collect(Collectors.toList());
+            }
+            for (Path xmlFile : xmlFiles)
+                updateWithFile(digest, xmlDir.relativize(xmlFile).toString(), xmlFile);
+        }
+
+        // a new ReFlow may build a different graph from the same files
+        for (Class<?> c : new Class<?>[] { WorkflowGraph.class, WorkflowXmlParser.class }) {
+            CodeSource source = c.getProtectionDomain().getCodeSource();
+            if (source == null) continue;
+            File jar = new File(source.getLocation().getPath());
+            update(digest, jar.getPath() + " " + jar.length() + " " + jar.lastModified());
+        }
+        return digest.digest();
+    }
+
+    private static void update(MessageDigest digest, String s) {
+        digest.update(String.valueOf(s).getBytes(StandardCharsets.UTF_8));
+        digest.update((byte) 0);
+    }
+
+    private static void updateWithFile(MessageDigest digest, String name, Path path) throws IOException {
+        update(digest, name);
+        if (!Files.isRegularFile(path)) {
+            update(digest, "(absent)");
+            return;
+        }
+        update(digest, String.valueOf(Files.size(path)));
+        byte[] buf = new byte[65536];
+        try (InputStream in = Files.newInputStream(path)) {
+            int n;
+            while ((n = in.read(buf)) > 0) digest.update(buf, 0, n);
+        }
+    }
+
+    /*
+     * the stream a compiled graph is written to.  strings are written once,
+     * and after that as their index, since most (file names, step classes,
+     * param names) repeat many times.  steps are written as their index in
+     * the graph's list of steps, or -1
+     */
+    static class Output extends DataOutputStream {
+        private final Map<String, Integer> strings = new HashMap<String, Integer>();
+
+        Output(OutputStream out) {
+            super(out);
+        }
+
+        void writeString(String s) throws IOException {
+            if (s == null) {
+                writeInt(-1);
+                return;
+            }
+            Integer index = strings.get(s);
+            if (index != null) {
+                writeInt(index);
+                return;
+            }
+            strings.put(s, strings.size());
+            byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+            writeInt(-2);
+            writeInt(bytes.length);
+            write(bytes);
+        }
+
+        void writeStrings(Collection<String> values) throws IOException {
+            writeInt(values.size());
+            for (String s : values) writeString(s);
+        }
+
+        void writeStringMap(Map<String, String> map) throws IOException {
+            writeInt(map.size());
+            for (Map.Entry<String, String> e : map.entrySet()) {
+                writeString(e.getKey());
+                writeString(e.getValue());
+            }
+        }
+
+        void writeStep(Map<WorkflowStep, Integer> index, WorkflowStep step) throws IOException {
+            Integer i = step == null ? null : index.get(step);
+            writeInt(i == null ? -1 : i);
+        }
+
+        // steps not in the index (ie, not in the graph) are left out
+        void writeSteps(Map<WorkflowStep, Integer> index, Collection<? extends WorkflowStep> steps) throws IOException {
+            List<Integer> indexes = new ArrayList<Integer>();
+            for (WorkflowStep step : steps)
+                if (index.containsKey(step)) indexes.add(index.get(step));
+            writeInt(indexes.size());
+            for (int i : indexes) writeInt(i);
+        }
+    }
+
+    static class Input extends DataInputStream {
+        private final List<String> strings = new ArrayList<String>();
+
+        Input(InputStream in) {
+            super(in);
+        }
+
+        String readString() throws IOException {
+            int index = readInt();
+            if (index == -1) return null;
+            if (index != -2) return strings.get(index);
+            byte[] bytes = new byte[readInt()];
+            readFully(bytes);
+            String s = new String(bytes, StandardCharsets.UTF_8);
+            strings.add(s);
+            return s;
+        }
+
+        void readStrings(Collection<String> target) throws IOException {
+            for (int n = readInt(); n > 0; n--) target.add(readString());
+        }
+
+        void readStringMap(Map<String, String> target) throws IOException {
+            for (int n = readInt(); n > 0; n--) target.put(readString(), readString());
+        }
+
+        <S> S readStep(List<S> steps) throws IOException {
+            int i = readInt();
+            return i == -1 ? null : steps.get(i);
+        }
+
+        <S> void readSteps(List<S> steps, Collection<? super S> target) throws IOException {
+            for (int n = readInt(); n > 0; n--) target.add(steps.get(readInt()));
+        }
+    }
+}
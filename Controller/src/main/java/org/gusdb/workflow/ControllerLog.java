@@ -0,0 +1,155 @@
+package org.gusdb.workflow;
+
+import static org.gusdb.fgputil.FormatUtil.NL;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.temporal.ChronoUnit;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * Writes logs/controller.log.  log() just stamps the line and puts it on a
+ * bounded queue; a background thread owns the open file and writes the lines
+ * out, so the controller's cycle never waits on file opens or disk writes.
+ * (If the queue fills, log() does wait, rather than lose lines.)
+ *
+ * The writer flushes whenever it catches up with the queue, so the file can
+ * still be tailed, and fsyncs at most every FSYNC_INTERVAL.  flush() waits
+ * until every line logged so far is written and synced; it is called on the
+ * kill-file exit path and from a shutdown hook, which covers System.exit()
+ * from Utilities.error().
+ *
+ * A write error on the background thread is thrown from the next log() or
+ * flush().
+ */
+class ControllerLog {
+
+    private static final int QUEUE_SIZE = 8192;
+    private static final long FSYNC_INTERVAL = 5000;  // millis
+
+    // DateTimeFormatter is thread safe.  same format as before
+    private static final DateTimeFormatter TIME_FORMAT = DateTimeFormatter.ofPattern("EEE, d MMM yyyy HH:mm:ss");
+
+    private final BlockingQueue<String> queue = new ArrayBlockingQueue<String>(QUEUE_SIZE);
+    private final FileOutputStream out;
+    private final Writer writer;
+    private final Thread writerThread;
+
+    // the formatted time is reused until the second changes
+    private LocalDateTime cachedSecond;
+    private String cachedTime;
+
+    private long linesQueued;   // guarded by this
+    private long linesWritten;  // guarded by this
+    private volatile IOException writeError;
+
+    ControllerLog(String fileName) throws IOException {
+        out = new FileOutputStream(fileName, true);
+        writer = new OutputStreamWriter(out, Charset.defaultCharset());
+        writerThread = new Thread(this::writeLines, "controller-log");
+        writerThread.setDaemon(true);
+        writerThread.start();
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            try {
+                flush();
+            }
+            catch (IOException e) {
+                System.err.println("Can't flush controller log: " + e.getMessage());
+            }
+        }));
+    }
+
+    void log(String msg) throws IOException {
+        throwWriteError();
+        String line = formatTime() + "  " + msg + NL + System.lineSeparator();
+        synchronized (this) {
+            linesQueued++;
+        }
+        try {
+            queue.put(line);
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while logging", e);
+        }
+    }
+
+    // wait until everything logged so far is on disk
+    void flush() throws IOException {
+        synchronized (this) {
+            long target = linesQueued;
+            while (linesWritten < target && writeError == null && writerThread.isAlive()) {
+                try {
+                    wait(100);
+                }
+                catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+            }
+        }
+        throwWriteError();
+        synchronized (writer) {
+            writer.flush();
+            out.getFD().sync();
+        }
+    }
+
+    private synchronized String formatTime() {
+        LocalDateTime second = LocalDateTime.now().truncatedTo(ChronoUnit.SECONDS);
+        if (!second.equals(cachedSecond)) {
+            cachedSecond = second;
+            cachedTime = TIME_FORMAT.format(second);
+        }
+        return cachedTime;
+    }
+
+    private void throwWriteError() throws IOException {
+        if (writeError != null) throw new IOException("Can't write controller log", writeError);
+    }
+
+    // the background thread
+    private void writeLines() {
+        long lastSync = System.currentTimeMillis();
+        try {
+            while (true) {
+                String line = queue.poll(FSYNC_INTERVAL, TimeUnit.MILLISECONDS);
+                int count = 0;
+                synchronized (writer) {
+                    while (line != null) {
+                        writer.write(line);
+                        count++;
+                        line = queue.poll();
+                    }
+                    writer.flush();  // caught up
+                    if (System.currentTimeMillis() - lastSync >= FSYNC_INTERVAL) {
+                        out.getFD().sync();
+                        lastSync = System.currentTimeMillis();
+                    }
+                }
+                if (count > 0) {
+                    synchronized (this) {
+                        linesWritten += count;
+                        notifyAll();
+                    }
+                }
+            }
+        }
+        catch (IOException e) {
+            writeError = e;
+        }
+        catch (InterruptedException e) {
+            // exiting
+        }
+        synchronized (this) {
+            notifyAll();
+        }
+    }
+}
@@ -0,0 +1,99 @@
+package org.gusdb.workflow;
+
+import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_MODIFY;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileSystems;
+import java.nio.file.Paths;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * Blocks the controller between cycles until something changes, instead of
+ * always sleeping a fixed interval.
+ *
+ * The step wrapper and the pilot UI touch a file in the home dir's signals/
+ * directory whenever they change a step's row (see signalController() in
+ * WorkflowHandle.pm).  We watch that directory, and the home dir itself so a
+ * kill file is seen right away.  A signal wakes the controller within
+ * milliseconds.
+ *
+ * Polling stays as the fallback: if nothing is signaled we still wake up every
+ * POLL_INTERVAL, so changes that bypass the signal (a wrapper that died, a
+ * hand-edited row) are picked up exactly as before.  If the watch service
+ * can't be set up we just sleep.
+ */
+class ControllerWakeup implements Closeable {
+
+    static final String SIGNAL_DIR = "signals";
+    static final long POLL_INTERVAL = 2000;  // millis
+
+    // after a wakeup, wait this long so a burst of signals (eg, a wave of
+    // steps finishing together) is handled in one cycle
+    private static final long SETTLE_INTERVAL = 50;
+
+    private final File signalDir;
+    private WatchService watcher;
+
+    ControllerWakeup(String homeDir) {
+        signalDir = new File(homeDir + "/" + SIGNAL_DIR);
+        try {
+            if (!signalDir.exists()) signalDir.mkdir();
+            watcher = FileSystems.getDefault().newWatchService();
+            signalDir.toPath().register(watcher, ENTRY_CREATE, ENTRY_MODIFY);
+            Paths.get(homeDir).register(watcher, ENTRY_CREATE);
+        }
+        catch (IOException | UnsupportedOperationException e) {
+            close();
+            watcher = null;
+        }
+        clearSignals();
+    }
+
+    boolean isWatching() {
+        return watcher != null;
+    }
+
+    // wait for a signal or for the poll interval to run out.
+    // return true if woken by a signal
+    boolean await() throws InterruptedException {
+        if (watcher == null) {
+            Thread.sleep(POLL_INTERVAL);
+            return false;
+        }
+
+        WatchKey key = watcher.poll(POLL_INTERVAL, TimeUnit.MILLISECONDS);
+        if (key == null) return false;
+
+        Thread.sleep(SETTLE_INTERVAL);
+        do {
+            key.pollEvents();
+            key.reset();
+        } while ((key = watcher.poll()) != null);
+        clearSignals();
+        return true;
+    }
+
+    // the signal files carry no information beyond their arrival, so remove
+    // them once seen.  a signal touched after this is a fresh event
+    private void clearSignals() {
+        File[] signals = signalDir.listFiles();
+        if (signals == null) return;
+        for (File signal : signals) signal.delete();
+    }
+
+    @Override
+    public void close() {
+        if (watcher == null) return;
+        try {
+            watcher.close();
+        }
+        catch (IOException e) {
+            // nothing to do; we are done watching
+        }
+    }
+}
@@ -0,0 +1,257 @@
+package org.gusdb.workflow;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import javax.management.ObjectName;
+
+/*
+ * Where the controller's cycles spend their time.  The loop in runSub marks
+ * the end of each phase (snapshot, handling changes, ...), and reports counts
+ * for the cycle (rows read, updates written, processes forked, steps
+ * launched).  Each phase time and count goes into a histogram, from which we
+ * report percentiles.
+ *
+ * Two sets of histograms are kept: one since the controller started, and one
+ * for the current interval, which is reset each time the report is written.
+ * The report goes to logs/cycleMetrics.txt every REPORT_INTERVAL, and is also
+ * available over JMX (see CycleMetricsMBean), as is the latest cycle's time.
+ * The file also has the per statement counts and times of the workflow's
+ * StatementCache.
+ *
+ * The histograms are log-linear, in the style of HdrHistogram: exact below
+ * 16, and within 1/8 of the value above that.  Times are in microseconds.
+ */
+class CycleMetrics implements CycleMetricsMBean {
+
+    static final String ROWS_READ = "rowsRead";
+    static final String UPDATES = "updatesWritten";
+    static final String FORKS = "processesForked";
+    static final String LAUNCHES = "stepsLaunched";
+
+    private static final String CYCLE = "cycle";  // the whole cycle
+    private static final long REPORT_INTERVAL = 60000;  // millis
+    private static final double[] PERCENTILES = { 50, 90, 99, 99.9 };
+
+    private final String reportFileName;
+    private final WorkflowConnections connections;
+    private final Map<String, Histogram> phaseTimes = new LinkedHashMap<String, Histogram>();
+    private final Map<String, Histogram> intervalPhaseTimes = new LinkedHashMap<String, Histogram>();
+    private final Map<String, Histogram> counts = new LinkedHashMap<String, Histogram>();
+    private final Map<String, Histogram> intervalCounts = new LinkedHashMap<String, Histogram>();
+
+    private long cycleStart;
+    private long phaseStart;
+    private long cycles;
+    private volatile long lastCycleMicros;
+    private long lastReportTime = System.currentTimeMillis();
+    private volatile String lastIntervalReport = "";
+
+    CycleMetrics(String homeDir, String workflowName, WorkflowConnections connections) {
+        reportFileName = homeDir + "/logs/cycleMetrics.txt";
+        this.connections = connections;
+        try {
+            ObjectName name = new ObjectName("org.gusdb.workflow:type=CycleMetrics,name="
+                    + ObjectName.quote(workflowName));
+            if (!ManagementFactory.getPlatformMBeanServer().isRegistered(name))
+                ManagementFactory.getPlatformMBeanServer().registerMBean(this, name);
+        }
+        catch (Exception e) {
+            // JMX is a convenience.  the report file is still written
+        }
+    }
+
+    synchronized void startCycle() {
+        cycleStart = phaseStart = System.nanoTime();
+    }
+
+    // the named phase has just finished
+    synchronized void endPhase(String phase) {
+        long now = System.nanoTime();
+        record(phaseTimes, intervalPhaseTimes, phase, (now - phaseStart) / 1000);
+        phaseStart = now;
+    }
+
+    synchronized void count(String counter, long value) {
+        record(counts, intervalCounts, counter, value);
+    }
+
+    // also writes the report, if it is due
+    synchronized void endCycle() throws IOException {
+        long micros = (System.nanoTime() - cycleStart) / 1000;
+        record(phaseTimes, intervalPhaseTimes, CYCLE, micros);
+        lastCycleMicros = micros;
+        cycles++;
+
+        long now = System.currentTimeMillis();
+        if (now - lastReportTime >= REPORT_INTERVAL) {
+            writeReport(now);
+            lastReportTime = now;
+        }
+    }
+
+    private static void record(Map<String, Histogram> total, Map<String, Histogram> interval, String key, long value) {
+        histogram(total, key).record(value);
+        histogram(interval, key).record(value);
+    }
+
+    private static Histogram histogram(Map<String, Histogram> map, String key) {
+        Histogram h = map.get(key);
+        if (h == null) {
+            h = new Histogram();
+            map.put(key, h);
+        }
+        return h;
+    }
+
+    private void writeReport(long now) throws IOException {
+        StringBuilder sb = new StringBuilder();
+        sb.append("Controller cycle metrics at ").append(new Date(now)).append("\n");
+        sb.append("cycles since start: ").append(cycles).append("\n\n");
+        lastIntervalReport = report(intervalPhaseTimes, intervalCounts);
+        sb.append("Last ").append((now - lastReportTime) / 1000).append(" seconds\n");
+        sb.append(lastIntervalReport).append("\n");
+        sb.append("Since start\n");
+        sb.append(report(phaseTimes, counts)).append("\n");
+        sb.append("Statements since start\n");
+        sb.append(connections.getReport());
+        intervalPhaseTimes.clear();
+        intervalCounts.clear();
+
+        // replace the file in one step, so readers never see half a report
+        File tmp = new File(reportFileName + ".tmp");
+        PrintWriter writer = new PrintWriter(new FileWriter(tmp));
+        try {
+            writer.print(sb);
+        }
+        finally {
+            writer.close();
+        }
+        Files.move(tmp.toPath(), new File(reportFileName).toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    private static String report(Map<String, Histogram> times, Map<String, Histogram> counts) {
+        StringBuilder sb = new StringBuilder();
+        sb.append(String.format("  %-20s %8s", "phase (ms)", "count"));
+        for (double p : PERCENTILES) sb.append(String.format(" %9s", "p" + p));
+        sb.append(String.format(" %9s%n", "max"));
+        for (Map.Entry<String, Histogram> e : times.entrySet()) {
+            Histogram h = e.getValue();
+            sb.append(String.format("  %-20s %8d", e.getKey(), h.getCount()));
+            for (double p : PERCENTILES) sb.append(String.format(" %9.1f", h.getPercentile(p) / 1000.0));
+            sb.append(String.format(" %9.1f%n", h.getMax() / 1000.0));
+        }
+        sb.append(String.format("  %-20s %8s", "per cycle", "count"));
+        for (double p : PERCENTILES) sb.append(String.format(" %9s", "p" + p));
+        sb.append(String.format(" %9s%n", "max"));
+        for (Map.Entry<String, Histogram> e : counts.entrySet()) {
+            Histogram h = e.getValue();
+            sb.append(String.format("  %-20s %8d", e.getKey(), h.getCount()));
+            for (double p : PERCENTILES) sb.append(String.format(" %9d", h.getPercentile(p)));
+            sb.append(String.format(" %9d%n", h.getMax()));
+        }
+        return sb.toString();
+    }
+
+    // ///////////////////////////////////////////////////////////////////
+    // CycleMetricsMBean
+    // ///////////////////////////////////////////////////////////////////
+
+    @Override
+    public synchronized long getCycleCount() {
+        return cycles;
+    }
+
+    @Override
+    public double getLastCycleMillis() {
+        return lastCycleMicros / 1000.0;
+    }
+
+    @Override
+    public synchronized double getPhasePercentileMillis(String phase, double percentile) {
+        Histogram h = phaseTimes.get(phase);
+        return h == null ? 0 : h.getPercentile(percentile) / 1000.0;
+    }
+
+    @Override
+    public synchronized long getCountPercentile(String counter, double percentile) {
+        Histogram h = counts.get(counter);
+        return h == null ? 0 : h.getPercentile(percentile);
+    }
+
+    @Override
+    public synchronized String getReport() {
+        return report(phaseTimes, counts);
+    }
+
+    @Override
+    public String getLastIntervalReport() {
+        return lastIntervalReport;
+    }
+
+    @Override
+    public String getStatementReport() {
+        return connections.getReport();
+    }
+
+    /*
+     * log-linear histogram of non-negative longs.  values below 16 have their
+     * own bucket; above that each power of two is split into 8 buckets
+     */
+    private static class Histogram {
+        private static final int SUB_BUCKETS = 8;
+        private final long[] buckets = new long[16 + 60 * SUB_BUCKETS];
+        private long count;
+        private long max;
+
+        void record(long value) {
+            if (value < 0) value = 0;
+            buckets[index(value)]++;
+            count++;
+            if (value > max) max = value;
+        }
+
+        long getCount() {
+            return count;
+        }
+
+        long getMax() {
+            return max;
+        }
+
+        // the lowest value of the bucket holding the percentile (capped at max)
+        long getPercentile(double percentile) {
+            if (count == 0) return 0;
+            long rank = (long) Math.ceil(percentile / 100.0 * count);
+            if (rank < 1) rank = 1;
+            long seen = 0;
+            for (int i = 0; i < buckets.length; i++) {
+                seen += buckets[i];
+                if (seen >= rank) return Math.min(lowestValue(i), max);
+            }
+            return max;
+        }
+
+        private static int index(long value) {
+            if (value < 16) return (int) value;
+            int exp = 63 - Long.numberOfLeadingZeros(value);  // >= 4
+            int sub = (int) (value >>> (exp - 3)) & (SUB_BUCKETS - 1);
+            return 16 + (exp - 4) * SUB_BUCKETS + sub;
+        }
+
+        private static long lowestValue(int index) {
+            if (index < 16) return index;
+            int exp = (index - 16) / SUB_BUCKETS + 4;
+            int sub = (index - 16) % SUB_BUCKETS;
+            return (long) (SUB_BUCKETS + sub) << (exp - 3);
+        }
+    }
+}
@@ -0,0 +1,24 @@
+package org.gusdb.workflow;
+
+/*
+ * JMX view of the controller's CycleMetrics.  Phase names are the controller
+ * methods timed (eg, "getDbSnapshot"), plus "cycle" for the whole cycle.
+ * Counter names are the CycleMetrics constants (eg, "rowsRead").  The
+ * statement report is the workflow's StatementCache.getReport().
+ */
+public interface CycleMetricsMBean {
+
+    long getCycleCount();
+
+    double getLastCycleMillis();
+
+    double getPhasePercentileMillis(String phase, double percentile);
+
+    long getCountPercentile(String counter, double percentile);
+
+    String getReport();
+
+    String getLastIntervalReport();
+
+    String getStatementReport();
+}
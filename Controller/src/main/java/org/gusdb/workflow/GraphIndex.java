@@ -0,0 +1,123 @@
+package org.gusdb.workflow;
+
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.RandomAccess;
+import java.util.Set;
+
+/*
+ * The links of a finished graph, frozen into compressed sparse rows: each
+ * step gets a position (its depth first order), and the parents of the step
+ * at position i are the positions parentIndexes[parentStart[i]] up to (not
+ * including) parentIndexes[parentStart[i+1]].  Likewise for children.
+ *
+ * WorkflowGraph.freeze() builds one once expansion is done.  Each step's
+ * parents and children then become read-only views on these arrays, in the
+ * same order as before, so the per-step ArrayLists are dropped, and walking
+ * the graph reads packed int arrays.
+ *
+ * Changing the links of a frozen step (eg, conversion to undo) replaces its
+ * lists and unfreezes it; the graph is frozen again once it is complete.
+ */
+class GraphIndex {
+
+    private final WorkflowStep[] steps;
+    private final int[] parentStart;
+    private final int[] parentIndexes;
+    private final int[] childStart;
+    private final int[] childIndexes;
+
+    // steps in depth first order.  their links should all be to each other
+    GraphIndex(List<? extends WorkflowStep> sortedSteps) {
+        steps = sortedSteps.toArray(new WorkflowStep[sortedSteps.size()]);
+        Map<WorkflowStep, Integer> positions = new IdentityHashMap<WorkflowStep, Integer>();
+        for (int i = 0; i < steps.length; i++) positions.put(steps[i], i);
+
+        parentStart = new int[steps.length + 1];
+        childStart = new int[steps.length + 1];
+        List<Integer> parents = new ArrayList<Integer>();
+        List<Integer> children = new ArrayList<Integer>();
+        for (int i = 0; i < steps.length; i++) {
+            parentStart[i] = parents.size();
+            for (WorkflowStep parent : steps[i].getParents()) {
+                Integer p = positions.get(parent);
+                if (p != null) parents.add(p);
+            }
+            childStart[i] = children.size();
+            for (WorkflowStep child : steps[i].getChildren()) {
+                Integer c = positions.get(child);
+                if (c != null) children.add(c);
+            }
+        }
+        parentStart[steps.length] = parents.size();
+        childStart[steps.length] = children.size();
+        parentIndexes = toArray(parents);
+        childIndexes = toArray(children);
+
+        for (int i = 0; i < steps.length; i++) steps[i].freeze(this, i);
+    }
+
+    private static int[] toArray(List<Integer> list) {
+        int[] array = new int[list.size()];
+        for (int i = 0; i < array.length; i++) array[i] = list.get(i);
+        return array;
+    }
+
+    int size() {
+        return steps.length;
+    }
+
+    WorkflowStep getStep(int position) {
+        return steps[position];
+    }
+
+    List<WorkflowStep> getParents(int position) {
+        return new StepList(parentIndexes, parentStart[position], parentStart[position + 1]);
+    }
+
+    List<WorkflowStep> getChildren(int position) {
+        return new StepList(childIndexes, childStart[position], childStart[position + 1]);
+    }
+
+    // same as WorkflowStep.getDescendants: add kids not yet in accumulator,
+    // and their kids, and so on.  iterative, so depth doesn't matter
+    void addDescendants(int position, Set<WorkflowStep> accumulator) {
+        int[] stack = new int[steps.length + 1];
+        int top = 0;
+        stack[top++] = position;
+        while (top > 0) {
+            int p = stack[--top];
+            for (int k = childStart[p]; k < childStart[p + 1]; k++) {
+                int child = childIndexes[k];
+                if (accumulator.add(steps[child])) stack[top++] = child;
+            }
+        }
+    }
+
+    // read-only view of a run of positions, as steps
+    private class StepList extends AbstractList<WorkflowStep> implements RandomAccess {
+        private final int[] indexes;
+        private final int start;
+        private final int end;
+
+        StepList(int[] indexes, int start, int end) {
+            this.indexes = indexes;
+            this.start = start;
+            this.end = end;
+        }
+
+        @Override
+        public WorkflowStep get(int i) {
+            if (i < 0 || i >= end - start) throw new IndexOutOfBoundsException("Index: " + i);
+            return steps[indexes[start + i]];
+        }
+
+        @Override
+        public int size() {
+            return end - start;
+        }
+    }
+}
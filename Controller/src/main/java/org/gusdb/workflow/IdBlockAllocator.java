@@ -0,0 +1,64 @@
+package org.gusdb.workflow;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+import org.gusdb.fgputil.db.platform.DBPlatform;
+import org.gusdb.fgputil.db.platform.PostgreSQL;
+
+/*
+ * Hands out ids from a table's sequence (<table>_sq), fetching blockSize of
+ * them at a time in one query, so bulk inserts can bind the id as a value
+ * instead of calling the sequence once per row:
+ *   PostgreSQL:  SELECT nextval('t_sq') FROM generate_series(1, ?)
+ *   Oracle:      SELECT t_sq.nextval FROM dual CONNECT BY level <= ?
+ *
+ * The sequence itself is left alone (its increment is shared with the
+ * wrapper and other writers), so ids in a block need not be consecutive, and
+ * ids fetched but not used are simply skipped, as with any sequence.
+ */
+class IdBlockAllocator {
+
+    private final Connection connection;
+    private final String sql;
+    private final int blockSize;
+    private final int[] ids;
+    private int next;
+    private int count;
+
+    IdBlockAllocator(Connection connection, DBPlatform platform, String table, int blockSize) {
+        this.connection = connection;
+        this.blockSize = Math.max(blockSize, 1);
+        this.ids = new int[this.blockSize];
+        String nextVal = platform.getNextValExpression(null, table, "_sq");
+        if (platform instanceof PostgreSQL)
+            sql = "SELECT " + nextVal + " FROM generate_series(1, ?)";
+        else
+            sql = "SELECT " + nextVal + " FROM dual CONNECT BY level <= ?";
+    }
+
+    int next() throws SQLException {
+        if (next == count) fetch();
+        return ids[next++];
+    }
+
+    private void fetch() throws SQLException {
+        PreparedStatement stmt = null;
+        ResultSet rs = null;
+        next = 0;
+        count = 0;
+        try {
+            stmt = connection.prepareStatement(sql);
+            stmt.setInt(1, blockSize);
+            rs = stmt.executeQuery();
+            while (rs.next() && count < blockSize) ids[count++] = rs.getInt(1);
+        }
+        finally {
+            if (rs != null) rs.close();
+            if (stmt != null) stmt.close();
+        }
+        if (count == 0) throw new SQLException("No ids returned by: " + sql);
+    }
+}
@@ -1,7 +1,5 @@
 package org.gusdb.workflow;
 
-import java.sql.Connection;
-
 import org.apache.commons.cli.CommandLine;
 import org.apache.commons.cli.Options;
 import org.gusdb.fgputil.CliUtil;
@@ -34,8 +32,8 @@ public class IllegalGraphReport {
 
     System.err.println("Initializing...");
     try (DatabaseInstance db = Workflow.getDb();
-         Connection conn = db.getDataSource().getConnection()) {
-      RunnableWorkflow runnableWorkflow = new RunnableWorkflow(homeDirName, conn, db.getPlatform());
+         WorkflowConnections connections = new WorkflowConnections(db.getDataSource())) {
+      RunnableWorkflow runnableWorkflow = new RunnableWorkflow(homeDirName, connections, db.getPlatform());
       WorkflowGraph<RunnableWorkflowStep> rootGraph = WorkflowGraphUtil.constructFullGraph(
           new RunnableWorkflowGraphClassFactory(), runnableWorkflow);
       runnableWorkflow.setWorkflowGraph(rootGraph);
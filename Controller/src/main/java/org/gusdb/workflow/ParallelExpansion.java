@@ -0,0 +1,137 @@
+package org.gusdb.workflow;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveTask;
+
+/*
+ * Runs independent pieces of graph construction (sibling subgraph
+ * expansions) as fork/join tasks, and returns their results in the order
+ * given, so whatever is built from them stays deterministic.
+ *
+ * Sibling expansions do share the global graph's steps, which their steps
+ * depend on.  A task puts off its changes to those (see defer), and they are
+ * made when its result is taken, in the order given, so the shared steps'
+ * links come out as a sequential expansion would make them.
+ *
+ * Expansions nest (a subgraph expands its own subgraphs), so a task that is
+ * already on the pool forks its children onto the same pool.  Their put off
+ * changes are put off again, by the task that takes their results.
+ *
+ * The number of threads is the reflow.graphThreads system property, by
+ * default the number of processors.  1 means expand sequentially, as before.
+ */
+class ParallelExpansion {
+
+    static final String THREADS_PROPERTY = "reflow.graphThreads";
+
+    interface Expansion<A, R> {
+        R expand(A item) throws Exception;
+    }
+
+    interface Insertion<A, R> {
+        void insert(A item, R result) throws Exception;
+    }
+
+    private static ForkJoinPool pool;
+
+    // the put off changes of the task running on this thread, if any
+    private static final ThreadLocal<List<Runnable>> deferred = new ThreadLocal<List<Runnable>>();
+
+    private static class ExpansionTask<A, R> extends RecursiveTask<R> {
+        private final A item;
+        private final Expansion<A, R> expansion;
+        private final List<Exception> errors;
+        private final List<Runnable> changes = new ArrayList<Runnable>();
+
+        ExpansionTask(A item, Expansion<A, R> expansion, List<Exception> errors) {
+            this.item = item;
+            this.expansion = expansion;
+            this.errors = errors;
+        }
+
+        @Override
+        protected R compute() {
+            // a thread waiting for its subtasks may run another task
+            List<Runnable> outer = deferred.get();
+            deferred.set(changes);
+            try {
+                return expansion.expand(item);
+            }
+            catch (Exception e) {
+                synchronized (errors) {
+                    errors.add(e);
+                }
+                return null;
+            }
+            finally {
+                deferred.set(outer);
+            }
+        }
+    }
+
+    static <A, R> List<R> expandAll(List<A> items, Expansion<A, R> expansion) throws Exception {
+        final List<R> results = new ArrayList<R>();
+        expandAll(items, expansion, (item, result) -> results.add(result));
+        return results;
+    }
+
+    // expand the items, and insert each result, in the order given
+    static <A, R> void expandAll(List<A> items, Expansion<A, R> expansion, Insertion<A, R> insertion)
+            throws Exception {
+        if (items.size() <= 1 || getThreads() <= 1) {
+            for (A item : items) insertion.insert(item, expansion.expand(item));
+            return;
+        }
+
+        final List<ExpansionTask<A, R>> tasks = new ArrayList<ExpansionTask<A, R>>();
+        final List<Exception> errors = new ArrayList<Exception>();
+        for (A item : items) tasks.add(new ExpansionTask<A, R>(item, expansion, errors));
+
+        if (ForkJoinTask.inForkJoinPool()) ForkJoinTask.invokeAll(tasks);
+        else getPool().invoke(new RecursiveTask<Void>() {
+            @Override
+            protected Void compute() {
+                ForkJoinTask.invokeAll(tasks);
+                return null;
+            }
+        });
+
+        if (!errors.isEmpty()) throw errors.get(0);
+        for (int i = 0; i < items.size(); i++) {
+            ExpansionTask<A, R> task = tasks.get(i);
+            R result = task.join();
+            for (Runnable change : task.changes) change.run();
+            insertion.insert(items.get(i), result);
+        }
+    }
+
+    // a change to a step that sibling expansions share.  in a task, put it
+    // off until the task's result is taken, and return true.  otherwise
+    // return false:  the caller makes the change now
+    static boolean defer(Runnable change) {
+        List<Runnable> changes = deferred.get();
+        if (changes == null) return false;
+        changes.add(change);
+        return true;
+    }
+
+    private static int getThreads() {
+        String threads = System.getProperty(THREADS_PROPERTY);
+        if (threads == null) return Runtime.getRuntime().availableProcessors();
+        try {
+            return Integer.parseInt(threads.trim());
+        }
+        catch (NumberFormatException e) {
+            Utilities.error("System property " + THREADS_PROPERTY + " must be an integer, not '" + threads + "'");
+            return 1;
+        }
+    }
+
+    private static synchronized ForkJoinPool getPool() {
+        if (pool == null) pool = new ForkJoinPool(getThreads());
+        return pool;
+    }
+}
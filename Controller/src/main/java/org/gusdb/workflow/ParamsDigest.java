@@ -0,0 +1,118 @@
+package org.gusdb.workflow;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Map;
+
+import org.gusdb.fgputil.EncryptionUtil;
+
+/*
+ * The params_digest of a step: a digest of its param names and values, used
+ * to tell whether a step's params changed since it was written to the db.
+ *
+ * Version 2 (what we write now) is "v2:" and the hex SHA-256 of the params
+ * sorted by name, each name and value written as its length in chars then
+ * its chars (UTF-16), a null value as length -1.  So the order params were
+ * declared in doesn't matter, and no string of all the params is built.
+ *
+ * Version 1 (before) is EncryptionUtil.encrypt(paramValues.toString()),
+ * which depends on declaration order.  Rows written by older versions of
+ * ReFlow still have it, so matches() recognizes both.  A version 1 digest
+ * that matches is rewritten as version 2 the next time the controller starts
+ * (see StepTableLoader), so checking it is a one time cost.
+ */
+class ParamsDigest {
+
+    static final String VERSION_PREFIX = "v2:";
+
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+    private static final int BUFFER_SIZE = 4096;
+
+    // one per thread: steps are digested during parallel expansion
+    private static final ThreadLocal<Digester> digesters = new ThreadLocal<Digester>() {
+        @Override
+        protected Digester initialValue() {
+            return new Digester();
+        }
+    };
+
+    static String compute(Map<String, String> params) {
+        return digesters.get().digest(params);
+    }
+
+    // false for a version 1 digest (or none)
+    static boolean isCurrent(String storedDigest) {
+        return storedDigest != null && storedDigest.startsWith(VERSION_PREFIX);
+    }
+
+    // true if storedDigest (from the db) is the digest of params, in either version
+    static boolean matches(String storedDigest, String currentDigest, Map<String, String> params) {
+        if (storedDigest == null) return false;
+        if (storedDigest.startsWith(VERSION_PREFIX)) return storedDigest.equals(currentDigest);
+        return storedDigest.equals(EncryptionUtil.encrypt(params.toString()));
+    }
+
+    private static class Digester {
+        private final MessageDigest md;
+        private final byte[] buffer = new byte[BUFFER_SIZE];
+        private int length;
+
+        Digester() {
+            try {
+                md = MessageDigest.getInstance("SHA-256");
+            }
+            catch (NoSuchAlgorithmException e) {
+                throw new RuntimeException(e);  // every JRE has SHA-256
+            }
+        }
+
+        String digest(Map<String, String> params) {
+            String[] names = params.keySet().toArray(new String[params.size()]);
+            Arrays.sort(names);
+            putInt(names.length);
+            for (String name : names) {
+                putString(name);
+                putString(params.get(name));
+            }
+            flush();
+            byte[] hash = md.digest();
+            char[] hex = new char[VERSION_PREFIX.length() + hash.length * 2];
+            VERSION_PREFIX.getChars(0, VERSION_PREFIX.length(), hex, 0);
+            int h = VERSION_PREFIX.length();
+            for (byte b : hash) {
+                hex[h++] = HEX[(b >> 4) & 0xf];
+                hex[h++] = HEX[b & 0xf];
+            }
+            return new String(hex);
+        }
+
+        private void putString(String s) {
+            if (s == null) {
+                putInt(-1);
+                return;
+            }
+            int n = s.length();
+            putInt(n);
+            for (int i = 0; i < n; i++) {
+                if (length + 2 > BUFFER_SIZE) flush();
+                char c = s.charAt(i);
+                buffer[length++] = (byte) (c >> 8);
+                buffer[length++] = (byte) c;
+            }
+        }
+
+        private void putInt(int v) {
+            if (length + 4 > BUFFER_SIZE) flush();
+            buffer[length++] = (byte) (v >> 24);
+            buffer[length++] = (byte) (v >> 16);
+            buffer[length++] = (byte) (v >> 8);
+            buffer[length++] = (byte) v;
+        }
+
+        private void flush() {
+            md.update(buffer, 0, length);
+            length = 0;
+        }
+    }
+}
@@ -0,0 +1,92 @@
+package org.gusdb.workflow;
+
+import java.time.Instant;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Optional;
+
+/*
+ * Tells the controller whether a RUNNING step's wrapper process is still
+ * alive, by asking the JVM (ProcessHandle) instead of forking "ps -p" for
+ * every running step every cycle.
+ *
+ * A pid alone isn't enough: once the wrapper dies the OS may hand its pid to
+ * an unrelated process, even before we first look (eg, across a controller
+ * restart).  So the first time we see a step's process it must be the
+ * step's wrapper: its arguments must include workflowRunStep and the step's
+ * name.  (If the OS won't tell us its arguments we take the pid's word for
+ * it, as "ps -p" did.)  Then we remember its start instant, and on later
+ * cycles a process with that pid but a different start instant counts as
+ * missing.  What we remember is keyed on the step name and dropped for steps
+ * not checked in the previous cycle, so a pid reused by a later step starts
+ * fresh.
+ *
+ * Like "ps -p", this only sees processes on the controller's host.
+ */
+class ProcessLivenessChecker {
+
+    static final String WRAPPER = "workflowRunStep";
+
+    private static class Seen {
+        final String pid;
+        final Instant start;  // null if the OS wouldn't say
+
+        Seen(String pid, Instant start) {
+            this.pid = pid;
+            this.start = start;
+        }
+    }
+
+    private Map<String, Seen> seenLastCycle = new HashMap<String, Seen>();
+    private Map<String, Seen> seenThisCycle = new HashMap<String, Seen>();
+
+    // call once per cycle, before checking the steps
+    void startCycle() {
+        seenLastCycle = seenThisCycle;
+        seenThisCycle = new HashMap<String, Seen>();
+    }
+
+    boolean isAlive(String stepName, String pid) {
+        if (pid == null) return false;
+
+        Optional<ProcessHandle> handle;
+        try {
+            handle = ProcessHandle.of(Long.parseLong(pid.trim()));
+        }
+        catch (NumberFormatException e) {
+            return false;
+        }
+        if (!handle.isPresent() || !handle.get().isAlive()) return false;
+
+        ProcessHandle.Info info = handle.get().info();
+        Instant start = info.startInstant().orElse(null);
+        Seen seen = seenLastCycle.get(stepName);
+        if (seen == null || !seen.pid.equals(pid)) {
+            if (!isWrapper(info, stepName)) return false;  // pid has been recycled
+            seen = new Seen(pid, start);
+        }
+        else if (seen.start != null && start != null && !seen.start.equals(start))
+            return false;  // pid has been recycled
+        else if (seen.start == null)
+            seen = new Seen(pid, start);
+        seenThisCycle.put(stepName, seen);
+        return true;
+    }
+
+    // is this the step's wrapper: "workflowRunStep homeDir wfId stepName ..."
+    // (as arguments to perl, or to idle)
+    static boolean isWrapper(ProcessHandle.Info info, String stepName) {
+        String[] args = info.arguments().orElse(null);
+        if (args == null) {
+            String commandLine = info.commandLine().orElse(null);
+            if (commandLine == null) return true;  // the OS won't say
+            args = commandLine.trim().split("\\s+");
+        }
+        boolean isWrapper = false;
+        for (String arg : args) {
+            if (arg.equals(WRAPPER) || arg.endsWith("/" + WRAPPER)) isWrapper = true;
+            else if (isWrapper && arg.equals(stepName)) return true;
+        }
+        return false;
+    }
+}
@@ -0,0 +1,110 @@
+package org.gusdb.workflow;
+
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.SortedSet;
+import java.util.TreeSet;
+
+/*
+ * Keeps track of which steps the controller needs to look at each cycle, so
+ * findOndeckSteps and fillOpenSlots don't have to scan the whole graph.
+ *
+ * For each step we keep a count of its parents that don't yet let it run
+ * (a parent lets its children run once it is DONE and, unless undoing, not
+ * STOP_AFTER).  When a snapshot shows a step has changed, we adjust its
+ * children's counts, and refile the step and its children in two queues,
+ * both in depth first order:
+ *   - ready:   READY (and, unless undoing, online) with a count of zero.
+ *              these are the steps that can go ON_DECK
+ *   - on deck: ON_DECK and online.  these are the steps that can be run
+ * So the work per cycle is proportional to the number of changes, not the
+ * size of the graph.
+ *
+ * Steps are refiled only from what the snapshot says.  The controller's own
+ * writes (ON_DECK, DONE) show up in the next snapshot, just as they did when
+ * the whole graph was scanned.
+ *
+ * The counts are arrays by position in the frozen graph (see GraphIndex).
+ * Build a new one whenever the graph changes (eg, conversion to undo).
+ */
+class ReadyQueueScheduler {
+
+    private static final Comparator<WorkflowStep> DEPTH_FIRST_ORDER = new Comparator<WorkflowStep>() {
+        @Override
+        public int compare(WorkflowStep a, WorkflowStep b) {
+            int c = Integer.compare(a.getDepthFirstOrder(), b.getDepthFirstOrder());
+            return c != 0 ? c : a.getFullName().compareTo(b.getFullName());
+        }
+    };
+
+    private final GraphIndex index;
+    private final boolean[] releasesChildren;  // as of the last snapshot
+    private final int[] blockingParents;
+    private final SortedSet<RunnableWorkflowStep> readySteps = new TreeSet<RunnableWorkflowStep>(DEPTH_FIRST_ORDER);
+    private final SortedSet<RunnableWorkflowStep> onDeckSteps = new TreeSet<RunnableWorkflowStep>(DEPTH_FIRST_ORDER);
+
+    // the graph's steps should already hold a snapshot
+    ReadyQueueScheduler(GraphIndex index) {
+        this.index = index;
+        releasesChildren = new boolean[index.size()];
+        blockingParents = new int[index.size()];
+        for (int i = 0; i < index.size(); i++) {
+            WorkflowStep step = index.getStep(i);
+            releasesChildren[i] = releasesChildren(step);
+            for (WorkflowStep parent : step.getParents())
+                if (!releasesChildren(parent)) blockingParents[i]++;
+        }
+        for (int i = 0; i < index.size(); i++) refile((RunnableWorkflowStep) index.getStep(i));
+    }
+
+    // update the queues for steps whose db row has been read since last call
+    void stepsChanged(Collection<? extends WorkflowStep> changedSteps) {
+        for (WorkflowStep step : changedSteps) {
+            int position = step.getPosition(index);
+            if (position == -1) continue;  // not in this graph (eg, undo)
+
+            boolean releases = releasesChildren(step);
+            if (releases != releasesChildren[position]) {
+                releasesChildren[position] = releases;
+                for (WorkflowStep child : step.getChildren()) {
+                    int childPosition = child.getPosition(index);
+                    if (childPosition == -1) continue;
+                    blockingParents[childPosition] += releases ? -1 : 1;
+                    refile((RunnableWorkflowStep) child);
+                }
+            }
+            refile((RunnableWorkflowStep) step);
+        }
+    }
+
+    // candidates for ON_DECK, in depth first order
+    SortedSet<RunnableWorkflowStep> getReadySteps() {
+        return readySteps;
+    }
+
+    // candidates to run, in depth first order
+    SortedSet<RunnableWorkflowStep> getOnDeckSteps() {
+        return onDeckSteps;
+    }
+
+    private void refile(RunnableWorkflowStep step) {
+        String state = step.getOperativeState();
+        boolean online = !step.getOffLine() || step.getUndoing();
+
+        if (Workflow.READY.equals(state) && online && blockingParents[step.getPosition(index)] == 0)
+            readySteps.add(step);
+        else
+            readySteps.remove(step);
+
+        if (Workflow.ON_DECK.equals(state) && !step.getOffLine())
+            onDeckSteps.add(step);
+        else
+            onDeckSteps.remove(step);
+    }
+
+    // same test as maybeGoToOnDeck() applies to a step's parents
+    private static boolean releasesChildren(WorkflowStep step) {
+        return Workflow.DONE.equals(step.getOperativeState())
+                && (!step.getStopAfter() || step.getUndoing());
+    }
+}
@@ -3,22 +3,14 @@ package org.gusdb.workflow;
 import static org.gusdb.fgputil.FormatUtil.NL;
 import java.io.File;
 import java.io.FileNotFoundException;
-import java.io.FileWriter;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.PrintWriter;
 import java.sql.Connection;
-import java.sql.PreparedStatement;
-import java.sql.ResultSet;
 import java.sql.SQLException;
-import java.sql.Statement;
-import java.text.FieldPosition;
-import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
-import java.util.Properties;
 import java.util.Set;
 
 import org.gusdb.fgputil.db.platform.DBPlatform;
@@ -72,11 +64,21 @@ public class RunnableWorkflow extends Workflow<RunnableWorkflowStep> {
     }
   }
 
+    private long lastGcTime = 0;
+    private ReadyQueueScheduler scheduler; // built from the first snapshot in runSub
+    private ControllerLog controllerLog; // opened on first use
+    private CycleMetrics cycleMetrics; // timing of the loop in runSub
+
     public RunnableWorkflow(String homeDir, Connection conn, DBPlatform platform) throws FileNotFoundException, IOException {
         super(homeDir, conn, platform);
         initHomeDir(); // initialize workflow home directory, if needed
     }
 
+    RunnableWorkflow(String homeDir, WorkflowConnections connections, DBPlatform platform) throws FileNotFoundException, IOException {
+        super(homeDir, connections, platform);
+        initHomeDir();
+    }
+
     // run the controller
     void run(boolean testOnly) throws Exception {
 
@@ -106,19 +108,63 @@ public class RunnableWorkflow extends Workflow<RunnableWorkflowStep> {
 
     void runSub(boolean testOnly) throws Exception {
       initializeUndo(testOnly); // unless undoStepName is null
-
-      // start polling
-      while (true) {
-        getDbSnapshot();
-        if (handleStepChanges(testOnly)) break; // returns true if all steps done
-        findOndeckSteps();
-        fillOpenSlots(testOnly);
-        System.gc();
-        Thread.sleep(2000);
-        cleanProcesses();
-        checkForKillSignal(); // if a kill file exists in wf home.
+      forceFullSnapshot(); // the steps in memory may be new, or now undoing
+      scheduler = null;
+
+      // start polling.  between cycles, block until a step signals a change
+      // (or the poll interval runs out)
+      try (ControllerWakeup wakeup = new ControllerWakeup(getHomeDir())) {
+        if (!wakeup.isWatching())
+          log("Can't watch " + ControllerWakeup.SIGNAL_DIR + "/ dir.  Polling every " + ControllerWakeup.POLL_INTERVAL + " ms");
+        if (cycleMetrics == null) cycleMetrics = new CycleMetrics(getHomeDir(), getWorkflowConfig("name"), getConnections());
+        CycleMetrics m = cycleMetrics;
+        while (true) {
+          m.startCycle();
+          getDbSnapshot();
+          if (scheduler == null) scheduler = new ReadyQueueScheduler(workflowGraph.getIndex());
+          else scheduler.stepsChanged(getStepsReadInSnapshot());
+          m.endPhase("getDbSnapshot");
+          m.count(CycleMetrics.ROWS_READ, getStepsReadInSnapshot().size());
+          if (handleStepChanges(testOnly)) break; // returns true if all steps done
+          m.endPhase("handleStepChanges");
+          findOndeckSteps();
+          m.endPhase("findOndeckSteps");
+          fillOpenSlots(testOnly);
+          m.endPhase("fillOpenSlots");
+          m.count(CycleMetrics.UPDATES, flushStepUpdates()); // this cycle's step writes, in one transaction
+          m.endPhase("flushStepUpdates");
+          maybeGc();
+          m.endPhase("gc");
+          wakeup.await();
+          m.endPhase("sleep");
+          List<StepLauncher.Launch> launches = logLaunches();
+          m.endPhase("logLaunches");
+          cleanProcesses();
+          m.endPhase("cleanProcesses");
+          checkForKillSignal(); // if a kill file exists in wf home.
+          m.endPhase("checkForKillSignal");
+          countLaunches(launches);
+          m.endCycle();
+        }
       }
+    }
+
+    // each launch is one fork
+    private void countLaunches(List<StepLauncher.Launch> launches) {
+      int launched = 0;
+      for (StepLauncher.Launch launch : launches)
+        if (launch.process != null) launched++;
+      cycleMetrics.count(CycleMetrics.FORKS, launches.size());
+      cycleMetrics.count(CycleMetrics.LAUNCHES, launched);
+    }
 
+    // cycles can now run back to back when steps signal, so don't force a
+    // full gc more than once per poll interval
+    private void maybeGc() {
+      long now = System.currentTimeMillis();
+      if (now - lastGcTime < ControllerWakeup.POLL_INTERVAL) return;
+      System.gc();
+      lastGcTime = now;
     }
 
     // backup the config/ dir and $GUS_HOME/lib/xml/workflow
@@ -165,26 +211,14 @@ public class RunnableWorkflow extends Workflow<RunnableWorkflowStep> {
             }
 
             String sql = getNewWorkflowIdSql();
-            Statement stmt = null;
-            ResultSet rs = null;
-            try {
-                stmt = getDbConnection().createStatement();
-                rs = stmt.executeQuery(sql);
-                rs.next();
-                workflow_id = rs.getInt(1);
-            }
-            finally {
-                if (rs != null) rs.close();
-                if (stmt != null) stmt.close();
-            }
+            getStatements().query(sql, rs -> workflow_id = rs.getInt(1));
 
             // write row to Workflow table
             int testint = test_mode ? 1 : 0;
             sql = "INSERT INTO " + workflowTable
-                    + " (workflow_id, name, version, test_mode)" + " VALUES ("
-                    + workflow_id + ", '" + name + "', '" + version + "', "
-                    + testint + ")";
-            executeSqlUpdate(sql);
+                    + " (workflow_id, name, version, test_mode)"
+                    + " VALUES (?, ?, ?, ?)";
+            executeSqlUpdate(sql, workflow_id, name, version, testint);
         }
 
         return uninitialized;
@@ -198,9 +232,9 @@ public class RunnableWorkflow extends Workflow<RunnableWorkflowStep> {
     private void setInitializingStepTableFlag(boolean initializing) throws SQLException {
         int i = initializing ? 1 : 0;
         String sql = "UPDATE " + workflowTable
-                + " SET initializing_step_table = " + i
-                + " WHERE workflow_id = " + workflow_id;
-        executeSqlUpdate(sql);
+                + " SET initializing_step_table = ?"
+                + " WHERE workflow_id = ?";
+        executeSqlUpdate(sql, i, workflow_id);
     }
 
     private void initWorkflowStepTable(boolean stepTableEmpty)
@@ -212,7 +246,27 @@ public class RunnableWorkflow extends Workflow<RunnableWorkflowStep> {
         // if so, no need to update db. otherwise, log the differences.
         // throw an error if any DONE or FAILED steps are changed
 	String diffs = workflowGraph.inDbExactly(stepTableEmpty);
-        if (diffs.length() == 0) log("Graph in XML matches graph in database.  No need to update database.");
+        int batchSize = Integer.parseInt(getWorkflowConfig("initBatchSize",
+                String.valueOf(StepTableLoader.DEFAULT_BATCH_SIZE)));
+        StepTableLoader loader = new StepTableLoader(getDbConnection(), getDbPlatform(),
+                workflow_id, workflowStepTable, workflowStepParamValTable,
+                workflowStepDependencyTable, batchSize);
+        List<RunnableWorkflowStep> sortedSteps = workflowGraph.getSortedSteps();
+        if (diffs.length() == 0) {
+            log("Graph in XML matches graph in database.  No need to update database.");
+
+            // but do rewrite params digests from older versions of ReFlow,
+            // so we needn't check them the old way again, and the steps'
+            // file names, if missing or out of date (for readers of the graph
+            // in the db)
+            if (workflowGraph.getOutdatedDigestCount() > 0
+                    || workflowGraph.getOutdatedXmlFileNameCount() > 0) {
+                loader.loadSteps(sortedSteps, workflowGraph.getStepNamesInDb());
+                log("Rewrote " + workflowGraph.getOutdatedDigestCount() + " old style params digests and "
+                        + workflowGraph.getOutdatedXmlFileNameCount() + " steps' file names");
+            }
+            getStepsDbState(); // for the steps' ids
+        }
 
         else {
             if (stepTableEmpty) {
@@ -237,22 +291,9 @@ public class RunnableWorkflow extends Workflow<RunnableWorkflowStep> {
             // write all steps to WorkflowStep table
             // for steps that are already there, update the depthFirstOrder
             Set<String> stepNamesInDb = workflowGraph.getStepNamesInDb();
-            PreparedStatement insertStepPstmt = WorkflowStep.getPreparedInsertStmt(
-                    getDbConnection(), workflow_id, workflowStepTable);
-            PreparedStatement updateStepPstmt = WorkflowStep.getPreparedUpdateStmt(
-                    getDbConnection(), workflow_id, workflowStepTable);
-            PreparedStatement insertStepParamValPstmt = WorkflowStep.getPreparedParamValInsertStmt(
-                    getDbConnection(), workflowStepParamValTable);
-            try {
-                for (WorkflowStep step : workflowGraph.getSortedSteps()) {
-                    step.initializeStepTable(stepNamesInDb, insertStepPstmt,
-                        updateStepPstmt);
-                }
-            }
-            finally {
-                updateStepPstmt.close();
-                insertStepPstmt.close();
-            }
+            int inserted = loader.loadSteps(sortedSteps, stepNamesInDb);
+            log("Wrote " + inserted + " new and " + (sortedSteps.size() - inserted)
+                    + " existing steps to " + workflowStepTable);
 
             // update steps in memory, to get their new IDs
 	    // save before updating to remember which were in db previously
@@ -260,15 +301,17 @@ public class RunnableWorkflow extends Workflow<RunnableWorkflowStep> {
             getStepsDbState();
 
 	    // update params table
-            try {
-                for (WorkflowStep step : workflowGraph.getSortedSteps()) {
-                    step.initializeStepParamValTable(stepNamesInDbSave, insertStepParamValPstmt);
-                }
-            }
-            finally {
-                insertStepParamValPstmt.close();
-            }
+            loader.loadParamValues(sortedSteps, stepNamesInDbSave);
         }
+
+        // keep the links in the db in step with the graph (for tools that
+        // read the graph from the db, see WorkflowGraph.readFromDb).  if the
+        // graph matches, this is one query, unless an older controller left
+        // the links unwritten
+        int[] links = loader.loadDependencies(sortedSteps);
+        if (links[0] + links[1] > 0)
+            log("Wrote " + links[0] + " new and deleted " + links[1] + " old dependencies in "
+                    + workflowStepDependencyTable);
         setInitializingStepTableFlag(false);
     }
 
@@ -333,9 +376,9 @@ public class RunnableWorkflow extends Workflow<RunnableWorkflowStep> {
 
             // set undo_step_id in workflow table
             String sql = "UPDATE " + workflowTable + NL
-                    + "SET undo_step_id = '" + undo_step_id + "'" + NL
-                    + "WHERE workflow_id = " + workflow_id;
-            executeSqlUpdate(sql);
+                    + "SET undo_step_id = ?" + NL
+                    + "WHERE workflow_id = ?";
+            executeSqlUpdate(sql, undo_step_id, workflow_id);
         }
 
         // if already running undo
@@ -364,28 +407,47 @@ public class RunnableWorkflow extends Workflow<RunnableWorkflowStep> {
             IOException, InterruptedException {
 
         boolean notDone = false;
+        getLivenessChecker().startCycle();
+
+        // steps whose process is gone: read their state again, concurrently,
+        // rather than one round trip after another
+        List<RunnableWorkflowStep> missing = new ArrayList<RunnableWorkflowStep>();
+        for (RunnableWorkflowStep step : workflowGraph.getSteps())
+            if (step.checkProcess()) missing.add(step);
+        List<WorkflowConnections.Read> rechecks = new ArrayList<WorkflowConnections.Read>();
+        for (RunnableWorkflowStep step : missing) rechecks.add(statements -> step.recheckState(statements));
+        getConnections().readAll(rechecks);
+
         for (RunnableWorkflowStep step : workflowGraph.getSteps()) {
             step.handleChangesSinceLastSnapshot();
             notDone |= !step.getOperativeState().equals(DONE);
         }
-        if (!notDone) setDoneState(testOnly);
+        if (!notDone) {
+            flushStepUpdates();
+            setDoneState(testOnly);
+        }
         return !notDone;
     }
 
+    // only READY steps whose parents are all done can go on deck.  the
+    // scheduler keeps them queued for us
     private void findOndeckSteps() throws SQLException, IOException {
-        for (RunnableWorkflowStep step : workflowGraph.getSteps()) {
+        for (RunnableWorkflowStep step : scheduler.getReadySteps()) {
             step.maybeGoToOnDeck();
         }
     }
 
   private void fillOpenSlots(boolean testOnly) throws IOException, SQLException {
+    refreshThrottleConfig(loadThrottleConfig);
+    refreshThrottleConfig(failThrottleConfig);
+
     List<String> notOk = new ArrayList<String>();
-    for (RunnableWorkflowStep step : workflowGraph.getSortedSteps()) {
+    for (RunnableWorkflowStep step : scheduler.getOnDeckSteps()) { // only these can run
 
-      boolean okToRun = okToRun(step, step.getLoadTypes(), runningLoadTypeCounts, runningStepClassCounts,
-          loadThrottleConfig, LOAD_THROTTLE_FILE, maxRunningPerStepClass) &&
-          okToRun(step, step.getFailTypes(), failedFailTypeCounts, failedStepClassCounts, failThrottleConfig,
-              FAIL_THROTTLE_FILE, maxFailedPerStepClass);
+      boolean okToRun = okToRun(step, step.getLoadTypes(), step.getLoadTypeIds(loadThrottleConfig),
+          runningLoadTypeCounts, runningStepClassCounts, loadThrottleConfig, maxRunningPerStepClass) &&
+          okToRun(step, step.getFailTypes(), step.getFailTypeIds(failThrottleConfig),
+              failedFailTypeCounts, failedStepClassCounts, failThrottleConfig, maxFailedPerStepClass);
 
       if (okToRun) {
         int slotsUsed = step.runOnDeckStep(this, testOnly); // 0 or 1
@@ -394,22 +456,36 @@ public class RunnableWorkflow extends Workflow<RunnableWorkflowStep> {
     }
   }
 
-  private boolean okToRun(RunnableWorkflowStep step, String[] types,
-      Map<String, Integer> typeCounts, Map<String, Integer> stepClassCounts, Properties config,
-      String configFile, int maxStepClassCount) throws FileNotFoundException, IOException {
+  // pick up edits to a throttle file.  a bad edit leaves the old limits in place
+  private void refreshThrottleConfig(ThrottleConfig config) throws IOException {
+    try {
+      if (config.refresh()) log("Read throttle limits from " + config.getFileName());
+    }
+    catch (IOException e) {
+      log("Can't use " + config.getFileName() + ", keeping previous limits: " + e.getMessage());
+    }
+  }
+
+  // types and typeIds are parallel: the step's types and their ids in config
+  private boolean okToRun(RunnableWorkflowStep step, String[] types, int[] typeIds,
+      Map<String, Integer> typeCounts, Map<String, Integer> stepClassCounts, ThrottleConfig config,
+      int maxStepClassCount) {
     
     // not ok to run if we've used up the total allowed
-    boolean okToRun = typeCounts.get(WorkflowStep.totalLoadType) == null || typeCounts.get(WorkflowStep.totalLoadType) < getThrottleConfig(WorkflowStep.totalLoadType, config, configFile);
+    Integer totalCount = typeCounts.get(WorkflowStep.totalLoadType);
+    boolean okToRun = totalCount == null || totalCount < config.getLimit(config.getTypeId(WorkflowStep.totalLoadType));
     
     // if this step declares loadTypes, use them
     if (types.length != 0) {
-      for (String type : types) {
+      for (int i = 0; i < types.length; i++) {
         // if a tag has path in it, it should be ignored, since it has
         // been assigned to the sub graph.
-        if (type.indexOf(WorkflowGraph.FLAG_DIVIDER) >= 0)
+        if (types[i].indexOf(WorkflowGraph.FLAG_DIVIDER) >= 0)
           continue;
 
-        if (typeCounts.get(type) != null && getThrottleConfig(type, config, configFile) != null && typeCounts.get(type) >= getThrottleConfig(type, config, configFile)) {
+        Integer count = typeCounts.get(types[i]);
+        int limit = config.getLimit(typeIds[i]);
+        if (count != null && limit != ThrottleConfig.NO_LIMIT && count >= limit) {
             okToRun = false;
             break;
         }
@@ -502,10 +578,10 @@ public class RunnableWorkflow extends Workflow<RunnableWorkflowStep> {
         log(msg);
         System.err.println(msg);
 
-        String sql = "UPDATE " + workflowTable + NL + "SET state = '" + RUNNING
-                + "', process_id = " + processId + ", host_machine = '"
-                + hostname + "'" + NL + "WHERE workflow_id = " + workflow_id;
-        executeSqlUpdate(sql);
+        String sql = "UPDATE " + workflowTable + NL + "SET state = ?"
+                + ", process_id = ?, host_machine = ?"
+                + NL + "WHERE workflow_id = ?";
+        executeSqlUpdate(sql, RUNNING, Long.valueOf(processId), hostname, workflow_id);
     }
 
     private void setDoneState(boolean testOnly) throws SQLException,
@@ -515,13 +591,13 @@ public class RunnableWorkflow extends Workflow<RunnableWorkflowStep> {
         if (undo_step_id != null) doneFlag = "undo_step_id = NULL";
 
         String sql = "UPDATE " + workflowTable + " SET " + doneFlag
-                + ", process_id = NULL" + " WHERE workflow_id = " + getId();
-        executeSqlUpdate(sql);
+                + ", process_id = NULL" + " WHERE workflow_id = ?";
+        executeSqlUpdate(sql, getId());
 
         sql = "UPDATE " + workflowStepTable
                 + " SET undo_state = NULL, undo_state_handled = 1 "
-                + "WHERE workflow_id = " + workflow_id;
-        executeSqlUpdate(sql);
+                + "WHERE workflow_id = ?";
+        executeSqlUpdate(sql, workflow_id);
 
         String what = "Workflow";
         if (undo_step_id != null) what = "Undo of " + undoStepName;
@@ -561,48 +637,30 @@ public class RunnableWorkflow extends Workflow<RunnableWorkflowStep> {
             log("Found kill file:");
             log(details);
             log("Controller is exiting");
+            controllerLog.flush();
             killFile.delete();
             System.exit(0);
         }
     }
 
     private boolean checkForRunningOrFailedSteps() throws SQLException {
-        Statement stmt = null;
-        ResultSet rs = null;
         String sql = "select count(*) from " + workflowStepTable
-                + " where workflow_id = " + workflow_id
-                + " and state in ('RUNNING', 'FAILED')";
-
-        try {
-            stmt = getDbConnection().createStatement();
-            rs = stmt.executeQuery(sql);
-            rs.next();
-            Integer count = rs.getInt(1);
-            return count != 0;
-        }
-        finally {
-            if (rs != null) rs.close();
-            if (stmt != null) stmt.close();
-        }
+                + " where workflow_id = ?"
+                + " and state in (?, ?)";
+        return countRows(sql, workflow_id, RUNNING, FAILED) != 0;
     }
 
     private boolean checkForLockedWorkflows() throws SQLException {
-        Statement stmt = null;
-        ResultSet rs = null;
         String sql = "select count(*) from " + workflowStepTable
-                + " WHERE state = 'LOCKED'";
-
-        try {
-            stmt = getDbConnection().createStatement();
-            rs = stmt.executeQuery(sql);
-            rs.next();
-            Integer count = rs.getInt(1);
-            return count != 0;
-        }
-        finally {
-            if (rs != null) rs.close();
-            if (stmt != null) stmt.close();
-        }
+                + " WHERE state = ?";
+        return countRows(sql, "LOCKED") != 0;
+    }
+
+    // run a select count(*)
+    private int countRows(String sql, Object... params) throws SQLException {
+        final int[] count = { 0 };
+        getReadStatements().query(sql, rs -> count[0] = rs.getInt(1), params);
+        return count[0];
     }
 
     private boolean checkNewWorkflowHomeDir() {
@@ -611,15 +669,11 @@ public class RunnableWorkflow extends Workflow<RunnableWorkflowStep> {
         return stepDir.list().length == 0 && dataDir.list().length == 0;
     }
 
+    // written in the background.  see ControllerLog
     @Override
     void log(String msg) throws IOException {
-        String logFileName = getHomeDir() + "/logs/controller.log";
-        PrintWriter writer = new PrintWriter(new FileWriter(logFileName, true));
-        SimpleDateFormat sdf = new SimpleDateFormat("EEE, d MMM yyyy HH:mm:ss");
-        StringBuffer buf = sdf.format(new java.util.Date(), new StringBuffer(),
-                new FieldPosition(0));
-
-        writer.println(buf + "  " + msg + NL);
-        writer.close();
+        if (controllerLog == null)
+            controllerLog = new ControllerLog(getHomeDir() + "/logs/controller.log");
+        controllerLog.log(msg);
     }
 }
@@ -1,9 +1,7 @@
 package org.gusdb.workflow;
 
 import java.io.IOException;
-import java.sql.ResultSet;
 import java.sql.SQLException;
-import java.sql.Statement;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Formatter;
@@ -13,6 +11,29 @@ public class RunnableWorkflowStep extends WorkflowStep {
 
     boolean isInvoked;
     int invokedButNotRunningCount;
+    private int[] loadTypeIds; // ids in the throttle configs, looked up once
+    private int[] failTypeIds;
+    private boolean processMissing; // this cycle.  see checkProcess()
+    private String stateNow; // in the db, if processMissing.  see recheckState()
+
+    // true if this step is RUNNING (and handled) but its process is gone.
+    // call once per cycle, before handleChangesSinceLastSnapshot()
+    boolean checkProcess() {
+        processMissing = workflow_step_id != null && getOperativeStateHandled()
+                && getOperativeState().equals(Workflow.RUNNING)
+                && !workflowGraph.getWorkflow().getLivenessChecker().isAlive(getFullName(), process_id);
+        stateNow = null;
+        return processMissing;
+    }
+
+    // read the state again, in case the wrapper finished after our snapshot.
+    // the re-checks of a cycle run concurrently (see handleStepChanges)
+    void recheckState(StatementCache statements) throws SQLException {
+        String workflowStepTable = workflowGraph.getWorkflow().getWorkflowStepTable();
+        String sql = "SELECT " + (getUndoing() ? "undo_state" : "state")
+                + " FROM " + workflowStepTable + " WHERE workflow_step_id = ?";
+        statements.query(sql, rs -> stateNow = rs.getString(1), workflow_step_id);
+    }
 
     int handleChangesSinceLastSnapshot()
             throws SQLException, IOException, InterruptedException {
@@ -20,13 +41,7 @@ public class RunnableWorkflowStep extends WorkflowStep {
             Utilities.error("Step " + getFullName()
                     + " is not found in the database");
         if (getOperativeStateHandled()) {
-            if (getOperativeState().equals(Workflow.RUNNING)) {
-                String[] cmd = new String[]{ "ps", "-p", String.valueOf(process_id) };
-                Process process = new ProcessBuilder().command(cmd).start();
-                process.waitFor();
-                if (process.exitValue() != 0) handleMissingProcess();
-                process.destroy();
-            }
+            if (processMissing) handleMissingProcess();
         } else { // this step has been changed by wrapper or pilot UI. log
                  // change.
             if (!getOperativeState().equals(prevState)) {
@@ -43,72 +58,58 @@ public class RunnableWorkflowStep extends WorkflowStep {
         return getOperativeState().equals(Workflow.RUNNING) ? 1 : 0;
     }
 
-    private void setHandledFlag() throws SQLException {
+    private void setHandledFlag() {
         // check that state is still as expected, to avoid theoretical race
         // condition
 
         int offlineInt = off_line ? 1 : 0;
         int stopafterInt = stop_after ? 1 : 0;
-        String sql;
         String workflowStepTable = workflowGraph.getWorkflow().getWorkflowStepTable();
 
         if (!getUndoing()) {
-            sql = "UPDATE " + workflowStepTable
+            String sql = "UPDATE " + workflowStepTable
                     + " SET state_handled = 1, last_handled_time = " + workflowGraph.getWorkflow().getDbPlatform().getSysdateIdentifier()
-                    + " WHERE workflow_step_id = " + workflow_step_id
-                    + " AND state = '" + state + "'" + " AND off_line = "
-                    + offlineInt + " AND stop_after = " + stopafterInt;
+                    + " WHERE workflow_step_id = ?"
+                    + " AND state = ? AND off_line = ? AND stop_after = ?";
             state_handled = true; // till next snapshot
+            // if we lost the race, the row is unhandled in the db.  say so here too
+            queueSqlUpdate(sql, rowCount -> { if (rowCount == 0) state_handled = false; },
+                    workflow_step_id, state, offlineInt, stopafterInt);
         } else {
-            sql = "UPDATE "
+            String sql = "UPDATE "
                     + workflowStepTable
                     + " SET undo_state_handled = 1, undo_last_handled_time = " + workflowGraph.getWorkflow().getDbPlatform().getSysdateIdentifier()
-                    + " WHERE workflow_step_id = " + workflow_step_id;
+                    + " WHERE workflow_step_id = ?";
             undo_state_handled = true; // till next snapshot
+            queueSqlUpdate(sql, null, workflow_step_id);
         }
-        executeSqlUpdate(sql);
     }
 
     private void handleMissingProcess() throws SQLException, IOException {
         String workflowStepTable = workflowGraph.getWorkflow().getWorkflowStepTable();
-        String sql = "SELECT " + (getUndoing() ? "undo_state" : "state")
-                + " FROM " + workflowStepTable + " WHERE workflow_step_id = "
-                + workflow_step_id;
-
-        Statement stmt = null;
-        ResultSet rs = null;
-        try {
-            stmt = workflowGraph.getWorkflow().getDbConnection().createStatement();
-            rs = stmt.executeQuery(sql);
-            rs.next();
-            String stateNow = rs.getString(1);
-            if (stateNow.equals(Workflow.RUNNING)) {
-                String handleColumn = getUndoing() ? "undo_state_handled"
-                        : "state_handled";
-                String stateColumn = getUndoing() ? "undo_state" : "state";
-
-                String endTimeString = "end_time = "
-                        + workflowGraph.getWorkflow().getDbPlatform().getNvlFunctionName()
-                        +"(end_time, "+ workflowGraph.getWorkflow().getDbPlatform().getSysdateIdentifier()+") ";
-                sql = "UPDATE " + workflowStepTable + " SET " + stateColumn
-                        + " = '" + Workflow.FAILED + "', " + handleColumn
-                        + "= 1" + "," + "process_id = null, "
-                        + endTimeString
-                        + " WHERE workflow_step_id = " + workflow_step_id
-                        + " AND " + (getUndoing() ? "undo_state" : "state")
-                        + "= '" + Workflow.RUNNING + "'";
-                executeSqlUpdate(sql);
-                steplog(Workflow.FAILED, "***");
-            }
-        }
-        finally {
-            if (rs != null) rs.close();
-            if (stmt != null) stmt.close();
+        if (Workflow.RUNNING.equals(stateNow)) {
+            String handleColumn = getUndoing() ? "undo_state_handled"
+                    : "state_handled";
+            String stateColumn = getUndoing() ? "undo_state" : "state";
+
+            String endTimeString = "end_time = "
+                    + workflowGraph.getWorkflow().getDbPlatform().getNvlFunctionName()
+                    +"(end_time, "+ workflowGraph.getWorkflow().getDbPlatform().getSysdateIdentifier()+") ";
+            String sql = "UPDATE " + workflowStepTable + " SET " + stateColumn
+                    + " = ?, " + handleColumn
+                    + "= 1" + "," + "process_id = null, "
+                    + endTimeString
+                    + workflowGraph.getWorkflow().getChangeStampSql()
+                    + " WHERE workflow_step_id = ?"
+                    + " AND " + stateColumn + " = ?";
+            queueSqlUpdate(sql, rowCount -> { if (rowCount == 0) steplog("", "(not FAILED: state changed in db)"); },
+                    Workflow.FAILED, workflow_step_id, Workflow.RUNNING);
+            steplog(Workflow.FAILED, "***");
         }
     }
 
     // if this step is ready, and all parents are done, transition to ON_DECK
-    void maybeGoToOnDeck() throws SQLException, IOException {
+    void maybeGoToOnDeck() throws IOException {
 
       // (ignore off_line or stop_after if undoing)
 
@@ -122,30 +123,37 @@ public class RunnableWorkflowStep extends WorkflowStep {
         steplog(Workflow.ON_DECK, "");
 
         String workflowStepTable = workflowGraph.getWorkflow().getWorkflowStepTable();
-        String set = getUndoing() ? " SET undo_state = '" + Workflow.ON_DECK
-                + "', undo_state_handled = 1" : " SET state = '"
-                + Workflow.ON_DECK + "', state_handled = 1";
+        String set = getUndoing() ? " SET undo_state = ?, undo_state_handled = 1"
+                : " SET state = ?, state_handled = 1";
 
         String and = getUndoing() ? "undo_state" : "state";
 
         String sql = "UPDATE " + workflowStepTable + set
-                + " WHERE workflow_step_id = " + workflow_step_id + " AND "
-                + and + " = '" + Workflow.READY + "'";
-        executeSqlUpdate(sql);
+                + workflowGraph.getWorkflow().getChangeStampSql()
+                + " WHERE workflow_step_id = ? AND "
+                + and + " = ?";
+        queueSqlUpdate(sql, rowCount -> { if (rowCount == 0) steplog("", "(not ON_DECK: state changed in db)"); },
+                Workflow.ON_DECK, workflow_step_id, Workflow.READY);
     }
 
     // if this step doesn't have an invoker (ie, it is a call to or return
     // from a subgraph), just go to done
-    void goToDone() throws SQLException {
+    void goToDone() {
         String workflowStepTable = workflowGraph.getWorkflow().getWorkflowStepTable();
-        String set = getUndoing() ? " SET undo_state = '" + Workflow.DONE
-                + "', undo_state_handled = 1, state = '" + Workflow.READY
-                + "', state_handled = 1" : " SET state = '" + Workflow.DONE
-                + "', state_handled = 1";
+        String sql = "UPDATE " + workflowStepTable
+                + (getUndoing() ? " SET undo_state = ?, undo_state_handled = 1, state = ?, state_handled = 1"
+                        : " SET state = ?, state_handled = 1")
+                + workflowGraph.getWorkflow().getChangeStampSql()
+                + " WHERE workflow_step_id = ?";
+        if (getUndoing())
+            queueSqlUpdate(sql, null, Workflow.DONE, Workflow.READY, workflow_step_id);
+        else
+            queueSqlUpdate(sql, null, Workflow.DONE, workflow_step_id);
+    }
 
-        String sql = "UPDATE " + workflowStepTable + set
-                + " WHERE workflow_step_id = " + workflow_step_id;
-        executeSqlUpdate(sql);
+    // written at the end of the cycle, with the other steps' updates
+    private void queueSqlUpdate(String sql, StepUpdateBatch.RowCountHandler handler, Object... params) {
+        workflowGraph.getWorkflow().getStepUpdates().add(sql, handler, params);
     }
 
     // try to run a single ON_DECK step
@@ -159,44 +167,33 @@ public class RunnableWorkflowStep extends WorkflowStep {
                 else steplog(Workflow.DONE, "");
                 goToDone();
             } else {
+                String errFile = getStepDir() + "/step.err";
                 String[] cmd = { "idle", "workflowRunStep", workflow.getHomeDir(),
                     workflow.getId().toString(), getFullName(),
                     "" + getId(), invokerClassName,
-                    getStepDir() + "/step.err", testOnly ? "test" : "run",
+                    errFile, testOnly ? "test" : "run",
                         getUndoing() ? "1" : "0",
-                            getSkipIfFileName()
+                            String.valueOf(getSkipIfFileName())
                 };
+                // one argument per value; no shell, so no quoting
                 List<String> cmd2 = new ArrayList<String>();
                 Collections.addAll(cmd2, cmd);
                 for (String name : paramValues.keySet()) {
-                    String valueStr = paramValues.get(name);
-                    valueStr = valueStr.replaceAll("\"", "\\\\\"");
                     cmd2.add("-" + name);
-                    cmd2.add("\"" + valueStr + "\"");
-                }
-
-                // join wrapper command into a single string
-                StringBuilder sb = new StringBuilder();
-                String delim = "";
-                for (String s : cmd2) {
-                    sb.append(delim + s);
-                    delim = " ";
+                    cmd2.add(paramValues.get(name));
                 }
 
-                // call sh directly to force wrapper into background
-                // so it survives a kill of the controller
-                String[] cmd3 = { "sh", "-c", sb.toString() + " &" };
                 if (isInvoked) {
                     invokedButNotRunningCount++;
                     steplog("Invoked but not running ("
                             + invokedButNotRunningCount + ")", "");
                     if (invokedButNotRunningCount == 3)
-                        steplog(sb.toString(), "");
+                        steplog(String.join(" ", cmd2), "");
                 } else {
                     steplog("Invoked", "");
-                    // System.err.println(sb.toString());
-                    Process p = Runtime.getRuntime().exec(cmd3);
-                    workflow.addBgdProcess(p);
+                    // the launcher starts the wrapper on its own thread.
+                    // see logLaunches()
+                    workflow.getStepLauncher().launch(this, cmd2, errFile);
                     isInvoked = true;
                 }
             }
@@ -205,6 +202,14 @@ public class RunnableWorkflowStep extends WorkflowStep {
         return 0;
     }
 
+    // report a launch handed back by the StepLauncher
+    void logLaunch(StepLauncher.Launch launch) throws IOException {
+        if (launch.process != null)
+            steplog("Launched", "pid=" + launch.process.pid() + " " + launch.getLatencyMillis() + "ms");
+        else
+            steplog("Launch failed: " + launch.error.getMessage(), "");
+    }
+
     private void steplog(String col1, String col2) throws IOException {
         StringBuilder sb = new StringBuilder();
         try (Formatter formatter = new Formatter(sb)) {
@@ -214,6 +219,16 @@ public class RunnableWorkflowStep extends WorkflowStep {
         workflowGraph.getWorkflow().log(sb.toString());
     }
 
+    int[] getLoadTypeIds(ThrottleConfig loadThrottleConfig) {
+        if (loadTypeIds == null) loadTypeIds = loadThrottleConfig.getTypeIds(getLoadTypes());
+        return loadTypeIds;
+    }
+
+    int[] getFailTypeIds(ThrottleConfig failThrottleConfig) {
+        if (failTypeIds == null) failTypeIds = failThrottleConfig.getTypeIds(getFailTypes());
+        return failTypeIds;
+    }
+
     @Override
     WorkflowStep newStep() {
         return new RunnableWorkflowStep();
@@ -0,0 +1,154 @@
+package org.gusdb.workflow;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/*
+ * The controller's statements.  Each statement shape (its SQL, with ? for
+ * every value) is prepared once on the workflow's connection and kept for
+ * the life of the controller, so the db parses it once, instead of once per
+ * distinct literal (which on Oracle fills the shared pool).
+ *
+ * For each shape we count executions, rows and time, reported by getReport()
+ * (written with the cycle metrics, see CycleMetrics).
+ *
+ * Statements from here are shared: callers must not close them, or leave a
+ * ResultSet of one open while executing it again.
+ */
+class StatementCache {
+
+    interface RowHandler {
+        void handle(ResultSet rs) throws SQLException;
+    }
+
+    private static class Shape {
+        final PreparedStatement stmt;
+        long executions;
+        long rows;
+        long totalNanos;
+        long maxNanos;
+
+        Shape(PreparedStatement stmt) {
+            this.stmt = stmt;
+        }
+    }
+
+    private final Connection connection;
+    private final Map<String, Shape> shapes = new LinkedHashMap<String, Shape>();
+
+    StatementCache(Connection connection) {
+        this.connection = connection;
+    }
+
+    // the statement for this sql, prepared the first time it is asked for
+    synchronized PreparedStatement prepare(String sql) throws SQLException {
+        return getShape(sql).stmt;
+    }
+
+    // run an INSERT, UPDATE or DELETE.  return the row count
+    synchronized int update(String sql, Object... params) throws SQLException {
+        Shape shape = getShape(sql);
+        bind(shape.stmt, params);
+        long start = System.nanoTime();
+        int count = shape.stmt.executeUpdate();
+        record(shape, start, 1, count);
+        return count;
+    }
+
+    // run a query, handing each row to handler
+    synchronized void query(String sql, RowHandler handler, Object... params) throws SQLException {
+        Shape shape = getShape(sql);
+        bind(shape.stmt, params);
+        long start = System.nanoTime();
+        long rows = 0;
+        ResultSet rs = shape.stmt.executeQuery();
+        try {
+            while (rs.next()) {
+                handler.handle(rs);
+                rows++;
+            }
+        }
+        finally {
+            rs.close();
+        }
+        record(shape, start, 1, rows);
+    }
+
+    // run the statement once per row of params, as one JDBC batch.  return
+    // the row counts
+    synchronized int[] batch(String sql, List<Object[]> rows) throws SQLException {
+        Shape shape = getShape(sql);
+        if (rows.isEmpty()) return new int[0];
+        for (Object[] params : rows) {
+            bind(shape.stmt, params);
+            shape.stmt.addBatch();
+        }
+        long start = System.nanoTime();
+        int[] counts;
+        try {
+            counts = shape.stmt.executeBatch();
+        }
+        finally {
+            shape.stmt.clearBatch();
+        }
+        long total = 0;
+        for (int count : counts) total += Math.max(count, 0);
+        record(shape, start, rows.size(), total);
+        return counts;
+    }
+
+    // for callers that execute a prepare()d statement themselves (eg, a batch)
+    synchronized void record(String sql, long startNanos, int executions, long rows) {
+        Shape shape = shapes.get(sql);
+        if (shape != null) record(shape, startNanos, executions, rows);
+    }
+
+    static void bind(PreparedStatement stmt, Object... params) throws SQLException {
+        for (int i = 0; i < params.length; i++) {
+            if (params[i] == null) stmt.setNull(i + 1, Types.VARCHAR);
+            else stmt.setObject(i + 1, params[i]);
+        }
+    }
+
+    private Shape getShape(String sql) throws SQLException {
+        Shape shape = shapes.get(sql);
+        if (shape == null) {
+            shape = new Shape(connection.prepareStatement(sql));
+            shapes.put(sql, shape);
+        }
+        return shape;
+    }
+
+    private static void record(Shape shape, long startNanos, int executions, long rows) {
+        long nanos = System.nanoTime() - startNanos;
+        shape.executions += executions;
+        shape.rows += Math.max(rows, 0);
+        shape.totalNanos += nanos;
+        if (nanos > shape.maxNanos) shape.maxNanos = nanos;
+    }
+
+    // one line per statement shape, most total time first
+    synchronized String getReport() {
+        List<Map.Entry<String, Shape>> entries = new ArrayList<Map.Entry<String, Shape>>(shapes.entrySet());
+        Collections.sort(entries, (a, b) -> Long.compare(b.getValue().totalNanos, a.getValue().totalNanos));
+        StringBuilder sb = new StringBuilder();
+        sb.append(String.format("  %10s %10s %10s %9s %9s  %s%n", "executions", "rows", "total (ms)",
+                "mean (ms)", "max (ms)", "statement"));
+        for (Map.Entry<String, Shape> e : entries) {
+            Shape s = e.getValue();
+            if (s.executions == 0) continue;
+            sb.append(String.format("  %10d %10d %10.1f %9.2f %9.2f  %s%n", s.executions, s.rows,
+                    s.totalNanos / 1e6, s.totalNanos / 1e6 / s.executions, s.maxNanos / 1e6,
+                    e.getKey().replaceAll("\\s+", " ")));
+        }
+        return sb.toString();
+    }
+}
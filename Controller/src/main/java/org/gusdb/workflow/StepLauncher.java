@@ -0,0 +1,116 @@
+package org.gusdb.workflow;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.ProcessBuilder.Redirect;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * Starts step wrapper processes (workflowRunStep) off the controller's
+ * thread, so a wave of runnable steps doesn't stall the cycle.
+ *
+ * Each wrapper is started with ProcessBuilder from an argument vector: no
+ * shell, so param values are passed exactly as they are (no quoting, and no
+ * shell expansion of $ or `).  Its stdout and stderr are appended to the
+ * step's step.err.  The wrapper must outlive the controller, so it is not
+ * left in the controller's process group, where a Ctrl-C or hangup would
+ * kill it too.  If setsid is available the wrapper gets its own session.
+ * If not, it is detached as it always was, by "sh -c ... &": sh starts it in
+ * the background and exits.  The wrapper's arguments are then sh's
+ * positional parameters, so they are still passed as they are, and the pid
+ * logged is sh's.
+ *
+ * Launches run on a small bounded pool.  When its queue is full the caller
+ * runs the launch itself, which slows the cycle down rather than dropping a
+ * step.  The outcome of each launch (pid, or the error) and its latency
+ * (from request to started process) are collected, and handed back to the
+ * controller thread by takeLaunched(), which does the logging.
+ */
+class StepLauncher {
+
+    private static final int THREADS = 8;
+    private static final int QUEUE_SIZE = 1000;
+
+    static class Launch {
+        final RunnableWorkflowStep step;
+        final List<String> cmd;
+        final long requestTime;
+        volatile long startTime;
+        volatile Process process;  // null if the launch failed
+        volatile IOException error;
+
+        Launch(RunnableWorkflowStep step, List<String> cmd) {
+            this.step = step;
+            this.cmd = cmd;
+            this.requestTime = System.nanoTime();
+        }
+
+        long getLatencyMillis() {
+            return TimeUnit.NANOSECONDS.toMillis(startTime - requestTime);
+        }
+    }
+
+    private final ThreadPoolExecutor executor;
+    private final ConcurrentLinkedQueue<Launch> launched = new ConcurrentLinkedQueue<Launch>();
+    private final String[] sessionPrefix;
+
+    StepLauncher() {
+        executor = new ThreadPoolExecutor(THREADS, THREADS, 60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<Runnable>(QUEUE_SIZE),
+                r -> {
+                    Thread t = new Thread(r, "step-launcher");
+                    t.setDaemon(true);  // don't hold up the controller's exit
+                    return t;
+                },
+                new ThreadPoolExecutor.CallerRunsPolicy());
+        executor.allowCoreThreadTimeOut(true);
+        sessionPrefix = isOnPath("setsid") ? new String[] { "setsid" }
+                : new String[] { "sh", "-c", "\"$@\" &", "sh" };
+    }
+
+    // queue a wrapper command.  errFile gets the wrapper's output
+    void launch(RunnableWorkflowStep step, List<String> cmd, String errFile) {
+        Launch launch = new Launch(step, cmd);
+        executor.execute(() -> start(launch, errFile));
+    }
+
+    private void start(Launch launch, String errFile) {
+        List<String> argv = new ArrayList<String>();
+        for (String s : sessionPrefix) argv.add(s);
+        argv.addAll(launch.cmd);
+        try {
+            File err = new File(errFile);
+            ProcessBuilder builder = new ProcessBuilder(argv)
+                    .redirectInput(Redirect.from(new File("/dev/null")))
+                    .redirectErrorStream(true)
+                    .redirectOutput(Redirect.appendTo(err));
+            launch.process = builder.start();
+        }
+        catch (IOException e) {
+            launch.error = e;
+        }
+        launch.startTime = System.nanoTime();
+        launched.add(launch);
+    }
+
+    // the launches finished since the last call
+    List<Launch> takeLaunched() {
+        List<Launch> list = new ArrayList<Launch>();
+        Launch launch;
+        while ((launch = launched.poll()) != null) list.add(launch);
+        return list;
+    }
+
+    private static boolean isOnPath(String program) {
+        String path = System.getenv("PATH");
+        if (path == null) return false;
+        for (String dir : path.split(File.pathSeparator))
+            if (new File(dir, program).canExecute()) return true;
+        return false;
+    }
+}
@@ -0,0 +1,455 @@
+package org.gusdb.workflow;
+
+import java.io.Reader;
+import java.io.StringReader;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.gusdb.fgputil.db.platform.DBPlatform;
+import org.gusdb.fgputil.db.platform.PostgreSQL;
+
+/*
+ * Writes a new or changed graph to the WorkflowStep, WorkflowStepParamValue
+ * and WorkflowStepDependency tables when the controller starts, in bulk
+ * rather than one statement per row.
+ *
+ * On PostgreSQL (if the driver is the postgres one) new rows are streamed in
+ * with COPY.  Otherwise, and for updates, rows go through JDBC batches.
+ * Either way, batchSize rows are sent at a time (workflow.prop
+ * initBatchSize, default 1000), and new rows' ids are taken from the
+ * sequences a block at a time, by IdBlockAllocator.
+ *
+ * New steps get their ids from the db, so the caller must read the steps back
+ * (one query: getStepsDbState) between loadSteps and loadParamValues, and
+ * before loadDependencies.
+ *
+ * Each load is one transaction.
+ */
+class StepTableLoader {
+
+    static final int DEFAULT_BATCH_SIZE = 1000;
+
+    private final Connection connection;
+    private final DBPlatform platform;
+    private final int workflowId;
+    private final String stepTable;
+    private final String paramValTable;
+    private final String dependencyTable;
+    private final int batchSize;
+
+    StepTableLoader(Connection connection, DBPlatform platform, int workflowId,
+            String stepTable, String paramValTable, String dependencyTable, int batchSize) {
+        this.connection = connection;
+        this.platform = platform;
+        this.workflowId = workflowId;
+        this.stepTable = stepTable;
+        this.paramValTable = paramValTable;
+        this.dependencyTable = dependencyTable;
+        this.batchSize = Math.max(batchSize, 1);
+    }
+
+    // insert the steps not in stepNamesInDb.  update the depends_string,
+    // depth_first_order and source and subgraph files of those that are, and
+    // their params_digest if it is an old style one (see
+    // WorkflowStep.setDbParamsDigestOutdated).  return how many were inserted
+    int loadSteps(List<? extends WorkflowStep> steps, Set<String> stepNamesInDb) throws SQLException {
+        boolean autoCommit = connection.getAutoCommit();
+        connection.setAutoCommit(false);
+        try {
+            int inserted;
+            Object copyManager = getCopyManager();
+            if (copyManager == null) inserted = batchSteps(steps, stepNamesInDb, true);
+            else {
+                batchSteps(steps, stepNamesInDb, false);
+                inserted = copySteps(copyManager, steps, stepNamesInDb);
+            }
+            connection.commit();
+            return inserted;
+        }
+        catch (SQLException e) {
+            connection.rollback();
+            throw e;
+        }
+        finally {
+            connection.setAutoCommit(autoCommit);
+        }
+    }
+
+    // insert the param values of the steps not in stepNamesInDb.  their ids
+    // must have been read back from the db.  return how many were inserted
+    int loadParamValues(List<? extends WorkflowStep> steps, Set<String> stepNamesInDb) throws SQLException {
+        boolean autoCommit = connection.getAutoCommit();
+        connection.setAutoCommit(false);
+        try {
+            Object copyManager = getCopyManager();
+            int inserted = copyManager == null ? batchParamValues(steps, stepNamesInDb)
+                    : copyParamValues(copyManager, steps, stepNamesInDb);
+            connection.commit();
+            return inserted;
+        }
+        catch (SQLException e) {
+            connection.rollback();
+            throw e;
+        }
+        finally {
+            connection.setAutoCommit(autoCommit);
+        }
+    }
+
+    // a parent/child link, as a row of the dependency table:  the step ids,
+    // and the link's place in the parent's children and in the child's
+    // parents, so the graph can be read back with its steps' links in order
+    // (see WorkflowGraph.readFromDb)
+    static class Dependency {
+        final int parentId;
+        final int childId;
+        int childOrder;
+        int parentOrder;
+
+        Dependency(int parentId, int childId, int childOrder, int parentOrder) {
+            this.parentId = parentId;
+            this.childId = childId;
+            this.childOrder = childOrder;
+            this.parentOrder = parentOrder;
+        }
+
+        boolean sameOrder(Dependency d) {
+            return childOrder == d.childOrder && parentOrder == d.parentOrder;
+        }
+    }
+
+    // the steps' links, by link(parent id, child id)
+    static Map<Long, Dependency> getDependencies(List<? extends WorkflowStep> steps) {
+        Map<Long, Dependency> dependencies = new LinkedHashMap<Long, Dependency>();
+        for (WorkflowStep step : steps) {
+            List<WorkflowStep> children = step.getChildren();
+            for (int i = 0; i < children.size(); i++) {
+                int childId = children.get(i).getId();
+                dependencies.put(link(step.getId(), childId), new Dependency(step.getId(), childId, i, 0));
+            }
+        }
+        for (WorkflowStep step : steps) {
+            List<WorkflowStep> parents = step.getParents();
+            for (int i = 0; i < parents.size(); i++) {
+                Dependency dependency = dependencies.get(link(parents.get(i).getId(), step.getId()));
+                if (dependency != null) dependency.parentOrder = i;
+            }
+        }
+        return dependencies;
+    }
+
+    // make the dependency table hold exactly the steps' parent/child links
+    // (one row per link, by step id), by inserting the new links and deleting
+    // those that are gone.  a link whose place among its parent's children or
+    // its child's parents has changed is replaced.  the steps' ids must have
+    // been read from the db.  return the number inserted and the number
+    // deleted
+    int[] loadDependencies(List<? extends WorkflowStep> steps) throws SQLException {
+        Map<Long, Dependency> dependencies = getDependencies(steps);
+
+        boolean autoCommit = connection.getAutoCommit();
+        connection.setAutoCommit(false);
+        try {
+            List<Long> gone = new ArrayList<Long>();
+            for (Map.Entry<Long, Dependency> dbDependency : getDbDependencies().entrySet()) {
+                Dependency dependency = dependencies.get(dbDependency.getKey());
+                if (dependency != null && dependency.sameOrder(dbDependency.getValue()))
+                    dependencies.remove(dbDependency.getKey());
+                else gone.add(dbDependency.getKey());
+            }
+            deleteDependencies(gone);
+            Object copyManager = getCopyManager();
+            if (copyManager == null) batchDependencies(dependencies.values());
+            else copyDependencies(copyManager, dependencies.values());
+            connection.commit();
+            return new int[] { dependencies.size(), gone.size() };
+        }
+        catch (SQLException e) {
+            connection.rollback();
+            throw e;
+        }
+        finally {
+            connection.setAutoCommit(autoCommit);
+        }
+    }
+
+    // a link as one long: the parent id, then the child id
+    private static long link(int parentId, int childId) {
+        return ((long) parentId << 32) | (childId & 0xffffffffL);
+    }
+
+    private static int parentId(long link) {
+        return (int) (link >>> 32);
+    }
+
+    private static int childId(long link) {
+        return (int) link;
+    }
+
+    // the links already in the db, for this workflow's steps
+    private Map<Long, Dependency> getDbDependencies() throws SQLException {
+        Map<Long, Dependency> dbDependencies = new HashMap<Long, Dependency>();
+        PreparedStatement stmt = connection.prepareStatement(
+                WorkflowStep.getDependenciesSql(stepTable, dependencyTable));
+        try {
+            stmt.setInt(1, workflowId);
+            ResultSet rs = stmt.executeQuery();
+            try {
+                while (rs.next()) {
+                    Dependency dependency = WorkflowStep.getDependencyFromDbRow(rs);
+                    dbDependencies.put(link(dependency.parentId, dependency.childId), dependency);
+                }
+            }
+            finally {
+                rs.close();
+            }
+        }
+        finally {
+            stmt.close();
+        }
+        return dbDependencies;
+    }
+
+    ////////////////////////////////////////////////////////////////////////
+    //   JDBC batches
+    ////////////////////////////////////////////////////////////////////////
+
+    // updates always, inserts if doInserts
+    private int batchSteps(List<? extends WorkflowStep> steps, Set<String> stepNamesInDb,
+            boolean doInserts) throws SQLException {
+        IdBlockAllocator stepIds = new IdBlockAllocator(connection, platform, stepTable, batchSize);
+        PreparedStatement insertStmt = WorkflowStep.getPreparedInsertStmt(connection,
+                workflowId, stepTable);
+        PreparedStatement updateStmt = WorkflowStep.getPreparedUpdateStmt(connection,
+                workflowId, stepTable);
+        int inserts = 0;
+        int updates = 0;
+        int inserted = 0;
+        try {
+            for (WorkflowStep step : steps) {
+                boolean isNew = !stepNamesInDb.contains(step.getFullName());
+                if (isNew && !doInserts) continue;
+                if (step.initializeStepTable(stepNamesInDb, stepIds, insertStmt, updateStmt)) {
+                    inserted++;
+                    if (++inserts == batchSize) inserts = execute(insertStmt);
+                }
+                else if (++updates == batchSize) updates = execute(updateStmt);
+            }
+            if (inserts > 0) execute(insertStmt);
+            if (updates > 0) execute(updateStmt);
+        }
+        finally {
+            updateStmt.close();
+            insertStmt.close();
+        }
+        return inserted;
+    }
+
+    private int batchParamValues(List<? extends WorkflowStep> steps, Set<String> stepNamesInDb)
+            throws SQLException {
+        IdBlockAllocator paramValIds = new IdBlockAllocator(connection, platform, paramValTable, batchSize);
+        PreparedStatement insertStmt = WorkflowStep.getPreparedParamValInsertStmt(connection,
+                paramValTable);
+        int pending = 0;
+        int inserted = 0;
+        try {
+            for (WorkflowStep step : steps) {
+                int added = step.initializeStepParamValTable(stepNamesInDb, paramValIds, insertStmt);
+                inserted += added;
+                pending += added;
+                if (pending >= batchSize) pending = execute(insertStmt);
+            }
+            if (pending > 0) execute(insertStmt);
+        }
+        finally {
+            insertStmt.close();
+        }
+        return inserted;
+    }
+
+    private void batchDependencies(Collection<Dependency> dependencies) throws SQLException {
+        IdBlockAllocator dependencyIds = new IdBlockAllocator(connection, platform, dependencyTable, batchSize);
+        PreparedStatement insertStmt = connection.prepareStatement("INSERT INTO " + dependencyTable
+                + " (workflow_step_dependency_id, parent_id, child_id, child_order, parent_order)"
+                + " VALUES (?, ?, ?, ?, ?)");
+        int pending = 0;
+        try {
+            for (Dependency dependency : dependencies) {
+                insertStmt.setInt(1, dependencyIds.next());
+                insertStmt.setInt(2, dependency.parentId);
+                insertStmt.setInt(3, dependency.childId);
+                insertStmt.setInt(4, dependency.childOrder);
+                insertStmt.setInt(5, dependency.parentOrder);
+                insertStmt.addBatch();
+                if (++pending == batchSize) pending = execute(insertStmt);
+            }
+            if (pending > 0) execute(insertStmt);
+        }
+        finally {
+            insertStmt.close();
+        }
+    }
+
+    private void deleteDependencies(List<Long> links) throws SQLException {
+        if (links.isEmpty()) return;
+        PreparedStatement deleteStmt = connection.prepareStatement("DELETE FROM " + dependencyTable
+                + " WHERE parent_id = ? AND child_id = ?");
+        int pending = 0;
+        try {
+            for (long link : links) {
+                deleteStmt.setInt(1, parentId(link));
+                deleteStmt.setInt(2, childId(link));
+                deleteStmt.addBatch();
+                if (++pending == batchSize) pending = execute(deleteStmt);
+            }
+            if (pending > 0) execute(deleteStmt);
+        }
+        finally {
+            deleteStmt.close();
+        }
+    }
+
+    private static int execute(PreparedStatement stmt) throws SQLException {
+        stmt.executeBatch();
+        stmt.clearBatch();
+        return 0;
+    }
+
+    ////////////////////////////////////////////////////////////////////////
+    //   PostgreSQL COPY
+    ////////////////////////////////////////////////////////////////////////
+
+    // same values as WorkflowStep.getPreparedInsertStmt
+    private int copySteps(Object copyManager, List<? extends WorkflowStep> steps,
+            Set<String> stepNamesInDb) throws SQLException {
+        IdBlockAllocator stepIds = new IdBlockAllocator(connection, platform, stepTable, batchSize);
+        String copySql = "COPY " + stepTable
+                + " (workflow_step_id, workflow_id, name, state, state_handled, undo_state, undo_state_handled, off_line, stop_after, depends_string, step_class, params_digest, depth_first_order, source_xml, subgraph_xml)"
+                + " FROM STDIN";
+        String workflowIdString = String.valueOf(workflowId);
+        StringBuilder rows = new StringBuilder();
+        int pending = 0;
+        int copied = 0;
+        for (WorkflowStep step : steps) {
+            if (stepNamesInDb.contains(step.getFullName())) continue;
+            appendRow(rows, String.valueOf(stepIds.next()), workflowIdString, step.getFullName(),
+                    Workflow.READY, "1", null, "1", "0", "0", step.getDependsString(),
+                    step.getStepClassName(), step.getParamsDigest(),
+                    String.valueOf(step.getDepthFirstOrder()), step.getSourceXmlFileName(),
+                    step.getSubgraphXmlFileName());
+            copied++;
+            if (++pending == batchSize) pending = copyIn(copyManager, copySql, rows);
+        }
+        if (pending > 0) copyIn(copyManager, copySql, rows);
+        return copied;
+    }
+
+    private int copyParamValues(Object copyManager, List<? extends WorkflowStep> steps,
+            Set<String> stepNamesInDb) throws SQLException {
+        IdBlockAllocator paramValIds = new IdBlockAllocator(connection, platform, paramValTable, batchSize);
+        String copySql = "COPY " + paramValTable
+                + " (workflow_step_param_value_id, workflow_step_id, param_name, param_value)"
+                + " FROM STDIN";
+        StringBuilder rows = new StringBuilder();
+        int pending = 0;
+        int copied = 0;
+        for (WorkflowStep step : steps) {
+            if (stepNamesInDb.contains(step.getFullName())) continue;
+            String stepId = String.valueOf(step.getId());
+            for (Map.Entry<String, String> param : step.getParamValues().entrySet()) {
+                appendRow(rows, String.valueOf(paramValIds.next()), stepId, param.getKey(),
+                        param.getValue());
+                copied++;
+                pending++;
+            }
+            if (pending >= batchSize) pending = copyIn(copyManager, copySql, rows);
+        }
+        if (pending > 0) copyIn(copyManager, copySql, rows);
+        return copied;
+    }
+
+    private void copyDependencies(Object copyManager, Collection<Dependency> dependencies) throws SQLException {
+        IdBlockAllocator dependencyIds = new IdBlockAllocator(connection, platform, dependencyTable, batchSize);
+        String copySql = "COPY " + dependencyTable
+                + " (workflow_step_dependency_id, parent_id, child_id, child_order, parent_order)"
+                + " FROM STDIN";
+        StringBuilder rows = new StringBuilder();
+        int pending = 0;
+        for (Dependency dependency : dependencies) {
+            appendRow(rows, String.valueOf(dependencyIds.next()), String.valueOf(dependency.parentId),
+                    String.valueOf(dependency.childId), String.valueOf(dependency.childOrder),
+                    String.valueOf(dependency.parentOrder));
+            if (++pending == batchSize) pending = copyIn(copyManager, copySql, rows);
+        }
+        if (pending > 0) copyIn(copyManager, copySql, rows);
+    }
+
+    // a row in COPY's text format: tab separated, \N for null, and
+    // backslash escapes for backslash, tab, newline and carriage return
+    private static void appendRow(StringBuilder rows, String... values) {
+        for (int i = 0; i < values.length; i++) {
+            if (i > 0) rows.append('\t');
+            String value = values[i];
+            if (value == null) {
+                rows.append("\\N");
+                continue;
+            }
+            for (int j = 0; j < value.length(); j++) {
+                char c = value.charAt(j);
+                switch (c) {
+                case '\\': rows.append("\\\\"); break;
+                case '\t': rows.append("\\t"); break;
+                case '\n': rows.append("\\n"); break;
+                case '\r': rows.append("\\r"); break;
+                default: rows.append(c);
+                }
+            }
+        }
+        rows.append('\n');
+    }
+
+    // send the rows, and empty the buffer
+    private static int copyIn(Object copyManager, String copySql, StringBuilder rows) throws SQLException {
+        try {
+            Method copyIn = copyManager.getClass().getMethod("copyIn", String.class, Reader.class);
+            copyIn.invoke(copyManager, copySql, new StringReader(rows.toString()));
+        }
+        catch (InvocationTargetException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof SQLException) throw (SQLException) cause;
+            throw new SQLException("COPY failed: " + copySql, cause);
+        }
+        catch (ReflectiveOperationException e) {
+            throw new SQLException("COPY failed: " + copySql, e);
+        }
+        rows.setLength(0);
+        return 0;
+    }
+
+    // the driver's org.postgresql.copy.CopyManager, found by reflection so we
+    // don't depend on the postgres driver.  null if not PostgreSQL, or not
+    // that driver (eg, a pool that won't unwrap), in which case we batch
+    private Object getCopyManager() {
+        if (!(platform instanceof PostgreSQL)) return null;
+        try {
+            Class<?> pgConnectionClass = Class.forName("org.postgresql.PGConnection");
+            if (!connection.isWrapperFor(pgConnectionClass)) return null;
+            Object pgConnection = connection.unwrap(pgConnectionClass);
+            return pgConnectionClass.getMethod("getCopyAPI").invoke(pgConnection);
+        }
+        catch (ReflectiveOperationException | SQLException | LinkageError e) {
+            return null;
+        }
+    }
+}
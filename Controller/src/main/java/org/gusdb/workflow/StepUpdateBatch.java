@@ -0,0 +1,104 @@
+package org.gusdb.workflow;
+
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/*
+ * Collects the controller's per-step UPDATEs for one cycle (handled flags,
+ * ON_DECK and DONE transitions, failing steps whose process is gone) and
+ * writes them in one round trip per statement shape, in a single transaction.
+ *
+ * Each update is a parameterized statement whose WHERE clause still checks
+ * the state we expect (eg, "AND state = ?"), because the step wrapper and
+ * pilot UI may change the row between our snapshot and the flush.  The row
+ * count of each update is handed back to its RowCountHandler, so a step can
+ * tell that it lost such a race.
+ *
+ * Shapes are executed in the order they were first queued, and updates
+ * within a shape in the order queued.
+ */
+class StepUpdateBatch {
+
+    interface RowCountHandler {
+        void handle(int rowCount) throws IOException;
+    }
+
+    private static class Update {
+        final Object[] params;
+        final RowCountHandler handler;
+
+        Update(Object[] params, RowCountHandler handler) {
+            this.params = params;
+            this.handler = handler;
+        }
+    }
+
+    private final WorkflowConnections connections;
+    private final Map<String, List<Update>> updatesBySql = new LinkedHashMap<String, List<Update>>();
+
+    // written on connections' write connection
+    StepUpdateBatch(WorkflowConnections connections) {
+        this.connections = connections;
+    }
+
+    // handler may be null if the row count doesn't matter
+    void add(String sql, RowCountHandler handler, Object... params) {
+        List<Update> updates = updatesBySql.get(sql);
+        if (updates == null) {
+            updates = new ArrayList<Update>();
+            updatesBySql.put(sql, updates);
+        }
+        updates.add(new Update(params, handler));
+    }
+
+    boolean isEmpty() {
+        return updatesBySql.isEmpty();
+    }
+
+    // write all queued updates, then report row counts.  on failure nothing
+    // is written, and the exception is passed on.  return how many updates
+    // were written
+    int flush() throws SQLException, IOException {
+        if (updatesBySql.isEmpty()) return 0;
+
+        List<Update> flushed = new ArrayList<Update>();
+        List<Integer> rowCounts = new ArrayList<Integer>();
+
+        Connection connection = connections.getWriteConnection();
+        StatementCache statements = connections.getWriteStatements();
+        boolean autoCommit = connection.getAutoCommit();
+        connection.setAutoCommit(false);
+        try {
+            for (Map.Entry<String, List<Update>> entry : updatesBySql.entrySet()) {
+                List<Object[]> rows = new ArrayList<Object[]>();
+                for (Update update : entry.getValue()) rows.add(update.params);
+                for (int count : statements.batch(entry.getKey(), rows)) rowCounts.add(count);
+                flushed.addAll(entry.getValue());
+            }
+            connection.commit();
+        }
+        catch (SQLException e) {
+            connection.rollback();
+            throw e;
+        }
+        finally {
+            connection.setAutoCommit(autoCommit);
+            updatesBySql.clear();
+        }
+
+        for (int i = 0; i < flushed.size(); i++) {
+            RowCountHandler handler = flushed.get(i).handler;
+            // SUCCESS_NO_INFO means the driver didn't say; assume it worked
+            int count = rowCounts.get(i);
+            if (handler != null && count != PreparedStatement.SUCCESS_NO_INFO)
+                handler.handle(count);
+        }
+        return flushed.size();
+    }
+}
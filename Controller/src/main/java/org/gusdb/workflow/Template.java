@@ -0,0 +1,175 @@
+package org.gusdb.workflow;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/*
+ * A string with $$variable$$ (or @@macro@@) references, scanned once for
+ * them, so substituting is one pass with a hash lookup per reference,
+ * instead of a regex per variable.
+ *
+ * It must give what the regex per variable gave, so a reference is wherever
+ * that regex could match: a delimiter, a name without the delimiter's
+ * character, and a delimiter.  References may overlap, eg, in $$$a$$ (a) or
+ * $$x$$a$$ (x and a).  Names are taken to be plain, as the regex took them
+ * as patterns.
+ *
+ * The same param values, constants and includeIfs are substituted into every
+ * instance of a subgraph, so templates are cached by their string.  The
+ * cache is shared by parallel subgraph expansions, and is bounded: when it
+ * fills, it is emptied and refills with what is in use.
+ */
+class Template {
+
+    static final String VARIABLE_DELIMITER = "$$";
+    static final String MACRO_DELIMITER = "@@";
+
+    private static final int MAX_CACHED = 50000;  // per delimiter
+    private static final Map<String, Map<String, Template>> cache = new ConcurrentHashMap<String, Map<String, Template>>();
+
+    private final String string;
+    private final String delimiter;
+    private final char mark;  // the delimiter's character
+    // the references, in order of where they start
+    private final int[] starts;
+    private final String[] names;
+
+    private Template(String string, String delimiter, int[] starts, String[] names) {
+        this.string = string;
+        this.delimiter = delimiter;
+        this.mark = delimiter.charAt(0);
+        this.starts = starts;
+        this.names = names;
+    }
+
+    static Template get(String string, String delimiter) {
+        Map<String, Template> templates = cache.computeIfAbsent(delimiter,
+                d -> new ConcurrentHashMap<String, Template>());
+        Template template = templates.get(string);
+        if (template == null) {
+            template = parse(string, delimiter);
+            if (templates.size() >= MAX_CACHED) templates.clear();
+            templates.put(string, template);
+        }
+        return template;
+    }
+
+    // every delimiter that is followed by a name and a closing delimiter.  a
+    // delimiter with no closing one is literal text
+    private static Template parse(String string, String delimiter) {
+        char mark = delimiter.charAt(0);
+        List<Integer> starts = new ArrayList<Integer>();
+        List<String> names = new ArrayList<String>();
+        int open = string.indexOf(delimiter);
+        while (open != -1) {
+            int nameStart = open + delimiter.length();
+            int close = nameStart;
+            while (close < string.length() && string.charAt(close) != mark) close++;
+            if (string.startsWith(delimiter, close)) {
+                starts.add(open);
+                names.add(string.substring(nameStart, close));
+            }
+            open = string.indexOf(delimiter, open + 1);
+        }
+        int[] startArray = new int[starts.size()];
+        for (int i = 0; i < startArray.length; i++) startArray[i] = starts.get(i);
+        return new Template(string, delimiter, startArray, names.toArray(new String[names.size()]));
+    }
+
+    boolean hasReferences() {
+        return starts.length > 0;
+    }
+
+    // substitute the values for the names found in values.  other references
+    // are left as they are, for a later substitution (or error).  returns null
+    // if the result could depend on the order the values were substituted in,
+    // which the caller must handle the old way, one value at a time:
+    //   - a value has the delimiter's character, so might make a reference
+    //   - two references with values overlap, so only one can be replaced
+    //   - a value, with the text around it, makes another name with a value
+    String substitute(Map<String, String> values) {
+        // as the regex for a name does, take its references left to right,
+        // skipping those that overlap one taken
+        int[] refs = new int[starts.length];
+        String[] refValues = new String[starts.length];
+        int count = 0;
+        for (int k = 0; k < starts.length; k++) {
+            String value = values.get(names[k]);
+            if (value == null) continue;
+            if (count > 0 && starts[k] < end(refs[count - 1])) {
+                if (names[k].equals(names[refs[count - 1]])) continue;
+                return null;
+            }
+            if (value.indexOf(mark) != -1) return null;
+            refs[count] = k;
+            refValues[count++] = value;
+        }
+        if (count == 0) return string;
+        for (int i = 0; i < count; i++)
+            if (makesName(i, refs, refValues, count, values)) return null;
+
+        StringBuilder sb = new StringBuilder();
+        int pos = 0;
+        for (int i = 0; i < count; i++) {
+            sb.append(string, pos, starts[refs[i]]).append(refValues[i]);
+            pos = end(refs[i]);
+        }
+        return sb.append(string, pos, string.length()).toString();
+    }
+
+    private int end(int k) {
+        return starts[k] + 2 * delimiter.length() + names[k].length();
+    }
+
+    // could replacing reference i make a reference to another name in values?
+    // it would be the value, with the text either side of it back to a
+    // delimiter: an unreplaced reference's, or one already in the text.  the
+    // text may run through replaced references next to this one
+    private boolean makesName(int i, int[] refs, String[] refValues, int count,
+            Map<String, String> values) {
+        List<String> befores = new ArrayList<String>();
+        String text = "";
+        int pos = starts[refs[i]];
+        for (int j = i; ; j--) {
+            int bound = j > 0 ? end(refs[j - 1]) : 0;
+            int from = pos;
+            while (from > bound && string.charAt(from - 1) != mark) from--;
+            text = string.substring(from, pos) + text;
+            if (from == bound && j > 0) {
+                befores.add(text);
+                text = refValues[j - 1] + text;
+                pos = starts[refs[j - 1]];
+                continue;
+            }
+            if (from >= delimiter.length() && string.startsWith(delimiter, from - delimiter.length()))
+                befores.add(text);
+            break;
+        }
+        if (befores.isEmpty()) return false;
+
+        List<String> afters = new ArrayList<String>();
+        text = "";
+        pos = end(refs[i]);
+        for (int j = i; ; j++) {
+            int bound = j < count - 1 ? starts[refs[j + 1]] : string.length();
+            int to = pos;
+            while (to < bound && string.charAt(to) != mark) to++;
+            text = text + string.substring(pos, to);
+            if (to == bound && j < count - 1) {
+                afters.add(text);
+                text = text + refValues[j + 1];
+                pos = end(refs[j + 1]);
+                continue;
+            }
+            if (string.startsWith(delimiter, to)) afters.add(text);
+            break;
+        }
+
+        for (String before : befores)
+            for (String after : afters)
+                if (values.containsKey(before + refValues[i] + after)) return true;
+        return false;
+    }
+}
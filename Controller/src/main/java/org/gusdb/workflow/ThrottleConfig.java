@@ -0,0 +1,118 @@
+package org.gusdb.workflow;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/*
+ * The limits in a throttle file (loadThrottle.prop or failThrottle.prop):
+ * how many steps of each load (or fail) type may be running (or failed) at
+ * once.  The file must have a line for the "total" type.
+ *
+ * The file is read once, and read again only when its modification time
+ * changes, so an operator can retune a live controller by editing it.  The
+ * controller calls refresh() once per cycle to pick up such edits.  If an
+ * edited file can't be used, the previous limits stay in effect.
+ *
+ * Each type name gets a small int id, which never changes, so callers can
+ * look up ids once and then read limits straight out of an array.
+ *
+ * Steps check their types during graph construction, on the expansion
+ * threads (see ParallelExpansion), so ids and limits are safe to use from
+ * several threads.  compileFullGraph loads the files before expanding.
+ */
+class ThrottleConfig {
+
+    static final int NO_LIMIT = -1;  // type not in the file
+
+    private final File file;
+    private final String fileName;
+    private final Map<String, Integer> typeIds = new ConcurrentHashMap<String, Integer>();
+    private final AtomicInteger nextTypeId = new AtomicInteger();
+    private volatile int[] limits;  // by type id.  null until first loaded
+    private long lastModified;
+
+    ThrottleConfig(String homeDir, String fileName) {
+        this.file = new File(homeDir + "/config/" + fileName);
+        this.fileName = fileName;
+    }
+
+    // read the file if it hasn't been read, or has changed since.  return
+    // true if it was read.  on failure, keep the previous limits and throw
+    synchronized boolean refresh() throws IOException {
+        long modified = file.lastModified();
+        if (limits != null && modified == lastModified) return false;
+
+        Properties props = new Properties();
+        FileInputStream f = new FileInputStream(file);
+        try {
+            props.load(f);
+        }
+        finally {
+            f.close();
+        }
+        if (props.getProperty(WorkflowStep.totalLoadType) == null)
+            throw new IOException("File " + fileName + " must contain a property for " + WorkflowStep.totalLoadType);
+
+        Map<Integer, Integer> newLimits = new HashMap<Integer, Integer>();
+        for (String type : props.stringPropertyNames()) {
+            try {
+                newLimits.put(getTypeId(type), Integer.valueOf(props.getProperty(type).trim()));
+            }
+            catch (NumberFormatException e) {
+                throw new IOException("File " + fileName + " has a non-integer value for " + type);
+            }
+        }
+
+        int[] array = new int[nextTypeId.get()];
+        Arrays.fill(array, NO_LIMIT);
+        for (Map.Entry<Integer, Integer> entry : newLimits.entrySet())
+            array[entry.getKey()] = entry.getValue();
+        limits = array;
+        lastModified = modified;
+        return true;
+    }
+
+    int getTypeId(String type) {
+        return typeIds.computeIfAbsent(type, t -> nextTypeId.getAndIncrement());
+    }
+
+    int[] getTypeIds(String[] types) {
+        int[] ids = new int[types.length];
+        for (int i = 0; i < types.length; i++) ids[i] = getTypeId(types[i]);
+        return ids;
+    }
+
+    // NO_LIMIT if the file doesn't mention the type
+    int getLimit(int typeId) {
+        int[] current = limits;
+        if (current == null) {
+            synchronized (this) {
+                try {
+                    if (limits == null) refresh();
+                }
+                catch (IOException e) {
+                    Utilities.error(e.getMessage());
+                }
+                current = limits;
+            }
+        }
+        return typeId < current.length ? current[typeId] : NO_LIMIT;
+    }
+
+    // null if the file doesn't mention the type
+    Integer getLimit(String type) {
+        int limit = getLimit(getTypeId(type));
+        return limit == NO_LIMIT ? null : limit;
+    }
+
+    String getFileName() {
+        return fileName;
+    }
+}
@@ -29,13 +29,7 @@ public class Utilities {
     public static String substituteVariablesIntoString(String string, Map<String, String> variables,
         String where, boolean check, String type, String name) {
         if (string.indexOf("$$") == -1) return string;
-        String newString = string;
-        for (String variableName : variables.keySet()) {
-            String variableValue = variables.get(variableName);
-            newString = newString.replaceAll(
-                    "\\$\\$" + variableName + "\\$\\$",
-                    Matcher.quoteReplacement(variableValue));
-        }
+        String newString = substitute(string, variables, Template.VARIABLE_DELIMITER, "\\$\\$");
         if (check) {
           String nm = name != null ? (" '" + name + "'") : "";
           if (newString.indexOf("$$") != -1) {
@@ -49,11 +43,25 @@ public class Utilities {
     public static String substituteMacrosIntoString(String string,
             Map<String, String> macros) {
         if (string.indexOf("@@") == -1) return string;
-        String newString = string;
-        for (String variableName : macros.keySet()) {
-            String variableValue = macros.get(variableName);
+        return substitute(string, macros, Template.MACRO_DELIMITER, "\\@\\@");
+    }
+
+    // substitute through the string's cached Template.  if the result could
+    // depend on the order of the values (see Template.substitute), fall back
+    // to replacing one variable at a time, which is what we always did
+    private static String substitute(String string, Map<String, String> values,
+            String delimiter, String delimiterRegex) {
+        if (values.isEmpty()) return string;
+        Template template = Template.get(string, delimiter);
+        if (!template.hasReferences()) return string;
+        String newString = template.substitute(values);
+        if (newString != null) return newString;
+
+        newString = string;
+        for (String variableName : values.keySet()) {
+            String variableValue = values.get(variableName);
             newString = newString.replaceAll(
-                    "\\@\\@" + variableName + "\\@\\@",
+                    delimiterRegex + variableName + delimiterRegex,
                     Matcher.quoteReplacement(variableValue));
         }
         return newString;
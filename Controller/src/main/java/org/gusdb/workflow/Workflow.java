@@ -7,17 +7,19 @@ import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.nio.file.Paths;
 import java.sql.Connection;
+import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
-import java.sql.Statement;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Date;
 import java.util.Formatter;
 import java.util.HashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Properties;
+import java.util.Set;
 
 import org.apache.commons.cli.CommandLine;
 import org.apache.commons.cli.Option;
@@ -71,22 +73,47 @@ public class Workflow<T extends WorkflowStep> {
   public static final String LOAD_THROTTLE_FILE = "loadThrottle.prop";
   public static final String FAIL_THROTTLE_FILE = "failThrottle.prop";
 
+  // incremental snapshots read the step rows whose change_seq is above a low
+  // water mark.  the mark can't just be the highest change_seq we have read:
+  // WorkflowStepChange_sq is shared by every workflow in the schema, the
+  // wrappers and the pilot UI, and (on Oracle, where sessions cache values)
+  // a change may commit after a higher numbered one that we already read.
+  // so the mark is the lower of
+  //   - the change_seq of each RUNNING and ON_DECK step, as we last read it.
+  //     the changes the controller waits for (a wrapper setting DONE or
+  //     FAILED) are to these steps, and are numbered after the change that
+  //     made them RUNNING or ON_DECK.  so these are never missed.
+  //   - the highest change_seq read, less changeSeqOverlap (workflow.prop,
+  //     default 100), for changes to other steps (eg, by the pilot UI).
+  // a change to another step that falls below both is not seen until the
+  // next full snapshot, at most FULL_SNAPSHOT_INTERVAL later.  if other
+  // workflows are busy, raise changeSeqOverlap.
+  //
+  // on Oracle RAC the sequence must be created with ORDER, or values from
+  // different instances are not in order, and the first bound doesn't hold
+  private static final String DEFAULT_CHANGE_SEQ_OVERLAP = "100";
+  // and still read the whole table this often, as a backstop
+  private static final long FULL_SNAPSHOT_INTERVAL = 60000;  // millis
+
   // configuration
   private final String homeDir;
-  private final Connection connection;
+  private final WorkflowConnections connections; // write, read, and concurrent reads
   private final DBPlatform platform;
   private Properties workflowProps; // from workflow config file
-  protected Properties loadThrottleConfig = new Properties();
-  protected Properties failThrottleConfig = new Properties();
-  private String[] homeDirSubDirs = {"logs", "steps", "data", "backups"};
+  protected final ThrottleConfig loadThrottleConfig;
+  protected final ThrottleConfig failThrottleConfig;
+  private String[] homeDirSubDirs = {"logs", "steps", "data", "backups", ControllerWakeup.SIGNAL_DIR, CompiledGraphCache.CACHE_DIR};
   protected String name;
   protected String version;
   protected String workflowTable;
   protected String workflowStepTable;
   protected String workflowStepParamValTable;
   protected String workflowStepTrackingTable;
+  protected String workflowStepDependencyTable; // the steps' parent/child links
   protected int maxRunningPerStepClass;
   protected int maxFailedPerStepClass;
+  protected boolean incrementalSnapshot;
+  private long changeSeqOverlap; // see DEFAULT_CHANGE_SEQ_OVERLAP
 
   // persistent state
   protected Integer workflow_id;
@@ -101,6 +128,14 @@ public class Workflow<T extends WorkflowStep> {
   protected Map<String, Integer> runningStepClassCounts; // running steps, by step class
   protected Map<String, Integer> failedFailTypeCounts; // failed steps, by type tag
   protected Map<String, Integer> failedStepClassCounts; // failed steps, by step class
+  private Set<WorkflowStep> runningOrFailedSteps = new LinkedHashSet<WorkflowStep>(); // source of the counts
+  private Long lastChangeSeq; // highest change_seq seen, iff incrementalSnapshot
+  private Map<WorkflowStep, Long> waitingStepChangeSeqs = new HashMap<WorkflowStep, Long>(); // RUNNING and ON_DECK steps, iff incrementalSnapshot
+  private long lastFullSnapshotTime;
+  private List<WorkflowStep> stepsReadInSnapshot = new ArrayList<WorkflowStep>(); // by the latest snapshot
+  private StepUpdateBatch stepUpdates; // step writes waiting for the end of the cycle
+  private final ProcessLivenessChecker livenessChecker = new ProcessLivenessChecker();
+  private StepLauncher stepLauncher; // starts step wrappers in the background
 
   // input
   protected WorkflowGraph<T> workflowGraph; // the graph
@@ -110,18 +145,28 @@ public class Workflow<T extends WorkflowStep> {
   // list of processes to clean
   private List<Process> bgdProcesses = new ArrayList<Process>();
 
+  // reads and writes all on connection, which the caller closes
   public Workflow(String homeDir, Connection connection, DBPlatform platform) throws FileNotFoundException, IOException {
+    this(homeDir, new WorkflowConnections(connection), platform);
+  }
+
+  Workflow(String homeDir, WorkflowConnections connections, DBPlatform platform) throws FileNotFoundException, IOException {
     this.homeDir = homeDir.replaceAll("/$", "");
-    this.connection = connection;
+    this.connections = connections;
     this.platform = platform;
+    loadThrottleConfig = new ThrottleConfig(this.homeDir, LOAD_THROTTLE_FILE);
+    failThrottleConfig = new ThrottleConfig(this.homeDir, FAIL_THROTTLE_FILE);
     name = getWorkflowConfig("name");
     version = getWorkflowConfig("version");
     workflowTable = getWorkflowConfig("workflowTable");
     workflowStepTable = getWorkflowConfig("workflowStepTable");
     workflowStepParamValTable = getWorkflowConfig("workflowStepParamValueTable");
     workflowStepTrackingTable = getWorkflowConfig("workflowStepTrackingTable");
+    workflowStepDependencyTable = getWorkflowConfig("workflowStepDependencyTable", workflowStepTable + "Dependency");
     maxRunningPerStepClass = Integer.parseInt(getWorkflowConfig("maxRunningPerStepClass"));
     maxFailedPerStepClass = Integer.parseInt(getWorkflowConfig("maxFailedPerStepClass"));
+    incrementalSnapshot = Boolean.parseBoolean(getWorkflowConfig("incrementalSnapshot", "false"));
+    changeSeqOverlap = Long.parseLong(getWorkflowConfig("changeSeqOverlap", DEFAULT_CHANGE_SEQ_OVERLAP).trim());
   }
 
   // ///////////////////////////////////////////////////////////////////////
@@ -167,6 +212,10 @@ public class Workflow<T extends WorkflowStep> {
         return workflowStepTrackingTable;
     }
 
+    String getWorkflowStepDependencyTable() {
+        return workflowStepDependencyTable;
+    }
+
     String getName() {
         return name;
     }
@@ -202,7 +251,17 @@ public class Workflow<T extends WorkflowStep> {
 
     protected void getDbSnapshot() throws SQLException {
         getDbState();
-        getStepsDbState();
+        if (incrementalSnapshot && lastChangeSeq != null
+                && System.currentTimeMillis() - lastFullSnapshotTime < FULL_SNAPSHOT_INTERVAL)
+            getStepsDbChanges();
+        else
+            getStepsDbState();
+    }
+
+    // make the next snapshot read the whole step table.  needed when the steps
+    // in memory are replaced or change meaning (eg, undo)
+    protected void forceFullSnapshot() {
+        lastChangeSeq = null;
     }
 
     protected void getDbState() throws SQLException {
@@ -210,70 +269,101 @@ public class Workflow<T extends WorkflowStep> {
             String sql = "select workflow_id, state, undo_step_id, process_id, host_machine, test_mode"
                     + " from "
                     + workflowTable
-                    + " where name = '"
-                    + name
-                    + "'"
-                    + " and version = '" + version + "'";
+                    + " where name = ?"
+                    + " and version = ?";
 
-            Statement stmt = null;
-            ResultSet rs = null;
-            try {
-                stmt = connection.createStatement();
-                rs = stmt.executeQuery(sql);
-                if (!rs.next())
-                    error("workflow '" + name + "' version '" + version
-                            + "' not in database");
+            getReadStatements().query(sql, rs -> {
                 workflow_id = rs.getInt(1);
                 state = rs.getString(2);
                 undo_step_id = (rs.getObject(3) == null) ? null : rs.getInt(3);
                 process_id = rs.getString(4);
                 host_machine = rs.getString(5);
                 test_mode = rs.getBoolean(6);
-            }
-            finally {
-                if (rs != null) rs.close();
-                if (stmt != null) stmt.close();
-            }
+            }, name, version);
+            if (workflow_id == null)
+                error("workflow '" + name + "' version '" + version
+                        + "' not in database");
         }
     }
 
     // read all WorkflowStep rows into memory (and remember the prev snapshot)
     protected void getStepsDbState() throws SQLException {
-        String sql = WorkflowStep.getBulkSnapshotSql(workflow_id,
-                workflowStepTable);
+        String sql = WorkflowStep.getBulkSnapshotSql(workflowStepTable,
+                incrementalSnapshot);
 
         // run query to get all rows from WorkflowStep for this workflow
         // stuff each row into the snapshot, keyed on step name
-        Statement stmt = null;
-        ResultSet rs = null;
-        
-        resetStepCounts();  // used for throttling
-        
-        try {
-            stmt = connection.createStatement();
-            rs = stmt.executeQuery(sql);
-            while (rs.next()) {
-                String stepName = rs.getString("NAME");
-                WorkflowStep step = workflowGraph.getStepsByName().get(stepName);
-                if (step == null) {
-                    if (undoStepName == null) {
-                        (new Throwable()).printStackTrace();
-                        error("Engine can't find step with name '" + stepName
-                                + "'");
-                    } else {
-                        continue;
-                    }
-                }
-                step.setFromDbSnapshot(rs);
-                if (step.getOperativeState() != null) {
-                   if (step.getOperativeState().equals(RUNNING)) updateRunningStepCounts(step, 1);
-                   else if (step.getOperativeState().equals(FAILED)) updateFailedStepCounts(step, 1);
-                }
+        runningOrFailedSteps.clear();
+        stepsReadInSnapshot.clear();
+        if (incrementalSnapshot) lastChangeSeq = 0L;
+        waitingStepChangeSeqs.clear();
+        lastFullSnapshotTime = System.currentTimeMillis();
+
+        getReadStatements().query(sql, rs -> setStepFromDbSnapshot(rs), workflow_id);
+        countRunningAndFailedSteps();  // used for throttling
+    }
+
+    // read into memory only the WorkflowStep rows whose change_seq has moved
+    // since the last snapshot.  the wrapper, pilot UI and controller stamp
+    // change_seq whenever they change a row (if incrementalSnapshot is on).
+    // see DEFAULT_CHANGE_SEQ_OVERLAP for the low water mark
+    private void getStepsDbChanges() throws SQLException {
+        String sql = WorkflowStep.getChangedSnapshotSql(workflowStepTable);
+
+        long lowWaterMark = lastChangeSeq - changeSeqOverlap;
+        for (long changeSeq : waitingStepChangeSeqs.values())
+            if (changeSeq < lowWaterMark) lowWaterMark = changeSeq;
+
+        stepsReadInSnapshot.clear();
+        getReadStatements().query(sql, rs -> setStepFromDbSnapshot(rs),
+                workflow_id, lowWaterMark);
+        countRunningAndFailedSteps();  // used for throttling
+    }
+
+    private void setStepFromDbSnapshot(ResultSet rs) throws SQLException {
+        String stepName = rs.getString("NAME");
+        WorkflowStep step = workflowGraph.getStepsByName().get(stepName);
+        if (step == null) {
+            if (undoStepName == null) {
+                (new Throwable()).printStackTrace();
+                error("Engine can't find step with name '" + stepName
+                        + "'");
             }
+            return;
         }
-        finally {
-            if (rs != null) rs.close();
-            if (stmt != null) stmt.close();
+        step.setFromDbSnapshot(rs);
+        stepsReadInSnapshot.add(step);
+
+        String operativeState = step.getOperativeState();
+        if (operativeState != null
+                && (operativeState.equals(RUNNING) || operativeState.equals(FAILED)))
+            runningOrFailedSteps.add(step);
+        else
+            runningOrFailedSteps.remove(step);
+
+        if (incrementalSnapshot) {
+            long changeSeq = rs.getLong("CHANGE_SEQ");
+            boolean stamped = !rs.wasNull();
+            if (stamped && changeSeq > lastChangeSeq) lastChangeSeq = changeSeq;
+            // changes to these come from wrappers.  don't read past them
+            if (stamped && (RUNNING.equals(operativeState) || ON_DECK.equals(operativeState)))
+                waitingStepChangeSeqs.put(step, changeSeq);
+            else
+                waitingStepChangeSeqs.remove(step);
+        }
+    }
+
+    // the steps whose rows the latest snapshot read (all of them, unless it
+    // was incremental)
+    protected List<WorkflowStep> getStepsReadInSnapshot() {
+        return stepsReadInSnapshot;
+    }
+
+    private void countRunningAndFailedSteps() {
+        resetStepCounts();
+        for (WorkflowStep step : runningOrFailedSteps) {
+            if (step.getOperativeState().equals(RUNNING)) updateRunningStepCounts(step, 1);
+            else updateFailedStepCounts(step, 1);
         }
     }
 
@@ -316,23 +406,13 @@ public class Workflow<T extends WorkflowStep> {
 
         // don't bother if already in db
         String sql = "select workflow_id" + " from " + workflowTable
-                + " where name = " + "'" + name + "'" + " and version = '"
-                + version + "'";
+                + " where name = ? and version = ?";
 
         log("Checking if database already intialized");
 
-        Statement stmt = null;
-        ResultSet rs = null;
-        try {
-            stmt = connection.createStatement();
-            rs = stmt.executeQuery(sql);
-            if (rs.next()) return true;
-        }
-        finally {
-            if (rs != null) rs.close();
-            if (stmt != null) stmt.close();
-        }
-        return false;
+        final boolean[] found = { false };
+        getReadStatements().query(sql, rs -> found[0] = true, name, version);
+        return found[0];
     }
 
     // //////////////////////////////////////////////////////////////////////
@@ -368,22 +448,71 @@ public class Workflow<T extends WorkflowStep> {
       return db;
     }
 
-    Connection getDbConnection() {
-      return connection;
+    // the write connection
+    Connection getDbConnection() throws SQLException {
+      return connections.getWriteConnection();
     }
 
     DBPlatform getDbPlatform() {
         return platform;
     }
 
-    void executeSqlUpdate(String sql) throws SQLException {
-        Statement stmt = connection.createStatement();
-        try {
-            stmt.executeUpdate(sql);
-        }
-        finally {
-            stmt.close();
+    // sql fragment that marks a step row as changed, so the next incremental
+    // snapshot reads it.  empty if incremental snapshots are off
+    String getChangeStampSql() {
+        if (!incrementalSnapshot) return "";
+        return ", change_seq = " + platform.getNextValExpression(null, workflowStepTable + "Change", "_sq");
+    }
+
+    ProcessLivenessChecker getLivenessChecker() {
+        return livenessChecker;
+    }
+
+    StepLauncher getStepLauncher() {
+        if (stepLauncher == null) stepLauncher = new StepLauncher();
+        return stepLauncher;
+    }
+
+    // log the wrapper launches that have completed, and keep their processes
+    // for cleanProcesses().  return the launches
+    protected List<StepLauncher.Launch> logLaunches() throws IOException {
+        if (stepLauncher == null) return new ArrayList<StepLauncher.Launch>();
+        List<StepLauncher.Launch> launches = stepLauncher.takeLaunched();
+        for (StepLauncher.Launch launch : launches) {
+            if (launch.process != null) addBgdProcess(launch.process);
+            launch.step.logLaunch(launch);
         }
+        return launches;
+    }
+
+    // steps queue their per-cycle writes here.  see flushStepUpdates()
+    StepUpdateBatch getStepUpdates() {
+        if (stepUpdates == null) stepUpdates = new StepUpdateBatch(connections);
+        return stepUpdates;
+    }
+
+    // write the steps' queued updates in one transaction.  return how many
+    protected int flushStepUpdates() throws SQLException, IOException {
+        return stepUpdates == null ? 0 : stepUpdates.flush();
+    }
+
+    WorkflowConnections getConnections() {
+        return connections;
+    }
+
+    // statements on the write connection
+    StatementCache getStatements() throws SQLException {
+        return connections.getWriteStatements();
+    }
+
+    // statements on the read connection: snapshots and reports
+    StatementCache getReadStatements() throws SQLException {
+        return connections.getReadStatements();
+    }
+
+    // values are bound to the ?s in sql, in order
+    void executeSqlUpdate(String sql, Object... params) throws SQLException {
+        getStatements().update(sql, params);
     }
 
     String getWorkflowConfig(String key) throws FileNotFoundException,
@@ -401,32 +530,23 @@ public class Workflow<T extends WorkflowStep> {
         return value;
     }
 
+    // for optional properties
+    String getWorkflowConfig(String key, String defaultValue) throws FileNotFoundException,
+            IOException {
+        getWorkflowConfig("name");  // load the file
+        return workflowProps.getProperty(key, defaultValue);
+    }
+
     public String getWorkflowXmlFileName() throws IOException {
         return getWorkflowConfig("workflowXmlFile");
     }
 
-  Integer getLoadThrottleConfig(String key) throws FileNotFoundException, IOException {
-    return getThrottleConfig(key, loadThrottleConfig, LOAD_THROTTLE_FILE);
+  Integer getLoadThrottleConfig(String key) {
+    return loadThrottleConfig.getLimit(key);
   }
 
-  Integer getFailThrottleConfig(String key) throws FileNotFoundException, IOException {
-    return getThrottleConfig(key, failThrottleConfig, FAIL_THROTTLE_FILE);
-  }
-
-  Integer getThrottleConfig(String key, Properties config, String file)
-      throws FileNotFoundException, IOException {
-    if (config.size() == 0) {
-      FileInputStream f = new FileInputStream(getHomeDir() + "/config/" + file);
-      config = new Properties();
-      config.load(f);
-      f.close();
-      if (config.getProperty(WorkflowStep.totalLoadType) == null)
-        error("File " + file + " must contain a property for " + WorkflowStep.totalLoadType);
-    }
-    String value = config.getProperty(key);
-    if (value == null)
-      return null;
-    return Integer.valueOf(config.getProperty(key));
+  Integer getFailThrottleConfig(String key) {
+    return failThrottleConfig.getLimit(key);
   }
 
     void error(String msg) {
@@ -478,8 +598,11 @@ public class Workflow<T extends WorkflowStep> {
         workflowStepTable = getWorkflowConfig("workflowStepTable");
 
         StringBuffer buf = new StringBuffer();
-        for (String ds : desiredStates)
-            buf.append("'" + ds + "',");
+        for (int i = 0; i < desiredStates.length; i++)
+            buf.append("?,");
+        List<Object> params = new ArrayList<Object>();
+        params.add(workflow_id);
+        params.addAll(Arrays.asList(desiredStates));
 
 
         String sql;
@@ -490,7 +613,7 @@ public class Workflow<T extends WorkflowStep> {
                     + ", end_time, CASE WHEN start_time IS NULL THEN -1 "
                     + "  ELSE EXTRACT(EPOCH FROM (COALESCE(end_time, LOCALTIMESTAMP) - start_time))/3600 "
                     + "  END AS hours " + " FROM " + workflowStepTable
-                    + " WHERE workflow_id = '" + workflow_id + "'" + " AND "
+                    + " WHERE workflow_id = ?" + " AND "
                     + state_str + " in(" + buf.substring(0, buf.length() - 1) + ")"
                     + " ORDER BY end_time ASC, start_time ASC"
             ;
@@ -499,18 +622,20 @@ public class Workflow<T extends WorkflowStep> {
                     + ", end_time, CASE WHEN start_time IS NULL THEN -1 "
                     + "  ELSE (nvl(end_time, SYSDATE) - start_time) * 24 "
                     + "  END AS hours " + " from " + workflowStepTable
-                    + " WHERE workflow_id = '" + workflow_id + "'" + " AND "
+                    + " WHERE workflow_id = ?" + " AND "
                     + state_str + " in(" + buf.substring(0, buf.length() - 1) + ")"
                     + " ORDER BY end_time ASC, start_time ASC"
             ;
         }
 
-        Statement stmt = null;
         ResultSet rs = null;
         Formatter formatter = null;
+        long start = System.nanoTime();
+        int rows = 0;
         try {
-            stmt = connection.createStatement();
-            rs = stmt.executeQuery(sql);
+            PreparedStatement stmt = getReadStatements().prepare(sql);
+            StatementCache.bind(stmt, params.toArray());
+            rs = stmt.executeQuery();
             StringBuilder sb = new StringBuilder();
             formatter = new Formatter(sb);
             if (!oneColumnOutput) {
@@ -524,6 +649,7 @@ public class Workflow<T extends WorkflowStep> {
                 String stat = rs.getString(state_str);
                 Date endTime = rs.getTimestamp("end_time");
                 double spent = rs.getFloat("hours");
+                rows++;
 
                 if (oneColumnOutput) System.out.println(nm);
                 else {
@@ -549,9 +675,9 @@ public class Workflow<T extends WorkflowStep> {
         }
         finally {
             if (rs != null) rs.close();
-            if (stmt != null) stmt.close();
             if (formatter != null) formatter.close();
         }
+        getReadStatements().record(sql, start, 1, rows);
     }
 
     // detailed reporting of steps
@@ -603,25 +729,30 @@ public class Workflow<T extends WorkflowStep> {
         }
 
         String sql = "update " + workflowTable
-                + " set undo_step_id = null where workflow_id = " + workflow_id;
-        executeSqlUpdate(sql);
+                + " set undo_step_id = null where workflow_id = ?";
+        executeSqlUpdate(sql, workflow_id);
 
         sql = "delete from " + workflowStepParamValTable
                 + " where workflow_step_id in (select workflow_step_id from "
-                + workflowStepTable + " where workflow_id = " + workflow_id
+                + workflowStepTable + " where workflow_id = ?"
+                + ")";
+        executeSqlUpdate(sql, workflow_id);
+        System.out.println(sql.replace("?", String.valueOf(workflow_id)));
+
+        sql = "delete from " + workflowStepDependencyTable
+                + " where child_id in (select workflow_step_id from "
+                + workflowStepTable + " where workflow_id = ?"
                 + ")";
-        executeSqlUpdate(sql);
-        System.out.println(sql);
+        executeSqlUpdate(sql, workflow_id);
+        System.out.println(sql.replace("?", String.valueOf(workflow_id)));
 
-        sql = "delete from " + workflowStepTable + " where workflow_id = "
-                + workflow_id;
-        executeSqlUpdate(sql);
-        System.out.println(sql);
+        sql = "delete from " + workflowStepTable + " where workflow_id = ?";
+        executeSqlUpdate(sql, workflow_id);
+        System.out.println(sql.replace("?", String.valueOf(workflow_id)));
 
-        sql = "delete from " + workflowTable + " where workflow_id = "
-                + workflow_id;
-        executeSqlUpdate(sql);
-        System.out.println(sql);
+        sql = "delete from " + workflowTable + " where workflow_id = ?";
+        executeSqlUpdate(sql, workflow_id);
+        System.out.println(sql.replace("?", String.valueOf(workflow_id)));
     }
 
     // brute force reset of workflow. for test workflows only.
@@ -638,9 +769,9 @@ public class Workflow<T extends WorkflowStep> {
         log("Reseting host_machine in database");
 
         String sql = "update " + workflowTable
-                + " set host_machine = null where workflow_id = " + workflow_id;
-        executeSqlUpdate(sql);
-        log(sql);
+                + " set host_machine = null where workflow_id = ?";
+        executeSqlUpdate(sql, workflow_id);
+        log(sql.replace("?", String.valueOf(workflow_id)));
         log("Please double check that NO workflow processes are running on "
                 + host_machine + " before running on " + hostname + ".");
     }
@@ -669,12 +800,12 @@ public class Workflow<T extends WorkflowStep> {
             Utilities.setDatabase(cmdLine.getOptionValue("db"));
 
         try (DatabaseInstance db = getDb();
-             Connection conn = db.getDataSource().getConnection()) {
+             WorkflowConnections connections = new WorkflowConnections(db.getDataSource())) {
 
         // runnable workflow, either test or run mode
         if (cmdLine.hasOption("r") || cmdLine.hasOption("t") || (cmdLine.hasOption("u") && cmdLine.hasOption("c"))) {
             System.err.println("Initializing...");
-            RunnableWorkflow runnableWorkflow = new RunnableWorkflow(homeDirName, conn, db.getPlatform());
+            RunnableWorkflow runnableWorkflow = new RunnableWorkflow(homeDirName, connections, db.getPlatform());
             WorkflowGraph<RunnableWorkflowStep> rootGraph = WorkflowGraphUtil.constructFullGraph(
                 new RunnableWorkflowGraphClassFactory(), runnableWorkflow);
             runnableWorkflow.setWorkflowGraph(rootGraph);
@@ -706,21 +837,21 @@ public class Workflow<T extends WorkflowStep> {
         // quick workflow report
         else if (cmdLine.hasOption("q")) {
             Workflow<WorkflowStep> workflow = new Workflow<WorkflowStep>(
-                    homeDirName, conn, db.getPlatform());
+                    homeDirName, connections, db.getPlatform());
             workflow.quickReportWorkflow();
         }
 
         // change machine
         else if (cmdLine.hasOption("m")) {
             Workflow<WorkflowStep> workflow = new Workflow<WorkflowStep>(
-                    homeDirName, conn, db.getPlatform());
+                    homeDirName, connections, db.getPlatform());
             workflow.resetMachine();
         }
 
         // quick step report (three column output)
         else if (cmdLine.hasOption("s")) {
             Workflow<WorkflowStep> workflow = new Workflow<WorkflowStep>(
-                    homeDirName, conn, db.getPlatform());
+                    homeDirName, connections, db.getPlatform());
             String[] desiredStates = getDesiredStates(cmdLine, "s");
             oops = desiredStates.length < 1;
             if (!oops) workflow.quickReportSteps(desiredStates, false);
@@ -729,7 +860,7 @@ public class Workflow<T extends WorkflowStep> {
         // quick step report (one column output)
         else if (cmdLine.hasOption("s1")) {
             Workflow<WorkflowStep> workflow = new Workflow<WorkflowStep>(
-                    homeDirName, conn, db.getPlatform());
+                    homeDirName, connections, db.getPlatform());
             String[] desiredStates = getDesiredStates(cmdLine, "s1");
             oops = desiredStates.length < 1;
             if (!oops) workflow.quickReportSteps(desiredStates, true);
@@ -737,9 +868,11 @@ public class Workflow<T extends WorkflowStep> {
 
         // compile check or detailed step report
         else if (cmdLine.hasOption("c") || cmdLine.hasOption("d")) {
-            Workflow<WorkflowStep> workflow = new Workflow<WorkflowStep>(homeDirName, conn, db.getPlatform());
-            WorkflowGraph<WorkflowStep> rootGraph = WorkflowGraphUtil.constructFullGraph(
-                    new WorkflowGraphClassFactory(), workflow);
+            Workflow<WorkflowStep> workflow = new Workflow<WorkflowStep>(homeDirName, connections, db.getPlatform());
+            // a compile check must build the graph.  the report can read it
+            WorkflowGraph<WorkflowStep> rootGraph = cmdLine.hasOption("c")
+                ? WorkflowGraphUtil.constructFullGraph(new WorkflowGraphClassFactory(), workflow)
+                : WorkflowGraphUtil.constructGraphFromDb(new WorkflowGraphClassFactory(), workflow);
             workflow.setWorkflowGraph(rootGraph);
             if (cmdLine.hasOption("d")) {
                 String[] desiredStates = getDesiredStates(cmdLine, "d");
@@ -749,7 +882,7 @@ public class Workflow<T extends WorkflowStep> {
         }
 
         else if (cmdLine.hasOption("reset")) {
-            Workflow<WorkflowStep> workflow = new Workflow<WorkflowStep>(homeDirName, conn, db.getPlatform());
+            Workflow<WorkflowStep> workflow = new Workflow<WorkflowStep>(homeDirName, connections, db.getPlatform());
             workflow.reset();
         }
 
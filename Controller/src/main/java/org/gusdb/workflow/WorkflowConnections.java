@@ -0,0 +1,204 @@
+package org.gusdb.workflow;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import javax.sql.DataSource;
+
+/*
+ * The workflow's db connections, borrowed from DatabaseInstance's pool (its
+ * DataSource) when first needed and kept, with their prepared statements,
+ * until close():
+ *   - the write connection: state transitions, the cycle's step updates
+ *     (StepUpdateBatch), initializing the tables
+ *   - the read connection: snapshots and reports.  autocommit, so a read
+ *     never holds a transaction open, and never waits behind a write
+ *   - up to reflow.readThreads (default 4) more read connections, for
+ *     readAll(): independent reads of a cycle, run concurrently
+ *
+ * Reports and other read-only commands never borrow a write connection.
+ *
+ * Made from a single Connection (no pool), everything runs on it, in turn.
+ *
+ * Reads see only committed rows.  Writes are committed as they are made,
+ * except the cycle's step updates, which are committed before the next
+ * snapshot.
+ */
+class WorkflowConnections implements AutoCloseable {
+
+    static final String READ_THREADS_PROPERTY = "reflow.readThreads";
+    private static final int DEFAULT_READ_THREADS = 4;
+
+    interface Read {
+        void run(StatementCache statements) throws SQLException;
+    }
+
+    private final DataSource dataSource;  // null if we were given one connection
+    private Connection writeConnection;
+    private StatementCache writeStatements;
+    private Connection readConnection;
+    private StatementCache readStatements;
+    private final List<Connection> concurrentConnections = new ArrayList<Connection>();
+    private final Deque<StatementCache> idleConcurrentStatements = new ArrayDeque<StatementCache>();
+    private final List<StatementCache> concurrentStatements = new ArrayList<StatementCache>();
+    private ExecutorService readExecutor;
+
+    WorkflowConnections(DataSource dataSource) {
+        this.dataSource = dataSource;
+    }
+
+    // no pool: reads and writes share connection.  the caller closes it
+    WorkflowConnections(Connection connection) {
+        this.dataSource = null;
+        this.writeConnection = connection;
+    }
+
+    synchronized Connection getWriteConnection() throws SQLException {
+        if (writeConnection == null) writeConnection = dataSource.getConnection();
+        return writeConnection;
+    }
+
+    synchronized StatementCache getWriteStatements() throws SQLException {
+        if (writeStatements == null) writeStatements = new StatementCache(getWriteConnection());
+        return writeStatements;
+    }
+
+    synchronized StatementCache getReadStatements() throws SQLException {
+        if (dataSource == null) return getWriteStatements();
+        if (readStatements == null) {
+            readConnection = borrowReadConnection();
+            readStatements = new StatementCache(readConnection);
+        }
+        return readStatements;
+    }
+
+    // run the reads, each on a read connection of its own, concurrently.
+    // they must not depend on one another.  returns when all are done; if
+    // any failed, throws the first failure
+    void readAll(List<? extends Read> reads) throws SQLException {
+        if (reads.isEmpty()) return;
+        if (dataSource == null || reads.size() == 1 || getReadThreads() <= 1) {
+            StatementCache statements = getReadStatements();
+            for (Read read : reads) read.run(statements);
+            return;
+        }
+
+        List<Future<?>> futures = new ArrayList<Future<?>>();
+        ExecutorService executor = getReadExecutor();
+        for (final Read read : reads) {
+            futures.add(executor.submit(() -> {
+                StatementCache statements = takeConcurrentStatements();
+                try {
+                    read.run(statements);
+                }
+                finally {
+                    returnConcurrentStatements(statements);
+                }
+                return null;
+            }));
+        }
+
+        SQLException failure = null;
+        for (Future<?> future : futures) {
+            try {
+                future.get();
+            }
+            catch (ExecutionException e) {
+                if (failure != null) continue;
+                if (e.getCause() instanceof SQLException) failure = (SQLException) e.getCause();
+                else failure = new SQLException("Concurrent read failed", e.getCause());
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                if (failure == null) failure = new SQLException("Interrupted waiting for a concurrent read", e);
+            }
+        }
+        if (failure != null) throw failure;
+    }
+
+    // one line per statement shape, per connection
+    synchronized String getReport() {
+        StringBuilder sb = new StringBuilder();
+        if (writeStatements != null) sb.append("write connection\n").append(writeStatements.getReport());
+        if (readStatements != null) sb.append("read connection\n").append(readStatements.getReport());
+        for (int i = 0; i < concurrentStatements.size(); i++)
+            sb.append("concurrent read connection ").append(i + 1).append("\n")
+                    .append(concurrentStatements.get(i).getReport());
+        return sb.toString();
+    }
+
+    // give the borrowed connections back to the pool.  a connection we were
+    // given is the caller's to close
+    @Override
+    public synchronized void close() throws SQLException {
+        if (readExecutor != null) readExecutor.shutdown();
+        if (dataSource == null) return;
+        SQLException failure = null;
+        List<Connection> borrowed = new ArrayList<Connection>(concurrentConnections);
+        borrowed.add(readConnection);
+        borrowed.add(writeConnection);
+        for (Connection connection : borrowed) {
+            if (connection == null) continue;
+            try {
+                connection.close();
+            }
+            catch (SQLException e) {
+                if (failure == null) failure = e;
+            }
+        }
+        if (failure != null) throw failure;
+    }
+
+    private Connection borrowReadConnection() throws SQLException {
+        Connection connection = dataSource.getConnection();
+        connection.setAutoCommit(true);
+        return connection;
+    }
+
+    // a concurrent read's connection, borrowed the first time we are this
+    // many reads deep, then reused
+    private synchronized StatementCache takeConcurrentStatements() throws SQLException {
+        StatementCache statements = idleConcurrentStatements.poll();
+        if (statements != null) return statements;
+        Connection connection = borrowReadConnection();
+        concurrentConnections.add(connection);
+        statements = new StatementCache(connection);
+        concurrentStatements.add(statements);
+        return statements;
+    }
+
+    private synchronized void returnConcurrentStatements(StatementCache statements) {
+        idleConcurrentStatements.push(statements);
+    }
+
+    private synchronized ExecutorService getReadExecutor() {
+        if (readExecutor == null) {
+            readExecutor = Executors.newFixedThreadPool(getReadThreads(), r -> {
+                Thread t = new Thread(r, "concurrent-read");
+                t.setDaemon(true);  // don't hold up the controller's exit
+                return t;
+            });
+        }
+        return readExecutor;
+    }
+
+    private static int getReadThreads() {
+        String threads = System.getProperty(READ_THREADS_PROPERTY);
+        if (threads == null) return DEFAULT_READ_THREADS;
+        try {
+            return Integer.parseInt(threads.trim());
+        }
+        catch (NumberFormatException e) {
+            Utilities.error("System property " + READ_THREADS_PROPERTY + " must be an integer, not '" + threads + "'");
+            return 1;
+        }
+    }
+}
@@ -3,17 +3,18 @@ package org.gusdb.workflow;
 import static org.gusdb.fgputil.FormatUtil.NL;
 import java.io.FileNotFoundException;
 import java.io.IOException;
-import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
-import java.sql.Statement;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Objects;
 import java.util.Set;
 
 import org.gusdb.fgputil.xml.Name;
@@ -65,6 +66,9 @@ public class WorkflowGraph<T extends WorkflowStep> implements WorkflowXmlContain
     private Map<String, T> _stepsByName = new LinkedHashMap<String, T>();
     private List<T> _leafSteps = new ArrayList<T>();
     private List<T> _sortedSteps;
+    private GraphIndex _index;  // once frozen
+    private int _outdatedDigests;  // steps whose db params digest is version 1, per inDbExactly
+    private int _outdatedXmlFileNames;  // steps whose db source or subgraph file differs, per inDbExactly
 
     public WorkflowGraph() {}
     
@@ -140,26 +144,72 @@ public class WorkflowGraph<T extends WorkflowStep> implements WorkflowXmlContain
         return _rootSteps;
     }
 
-    // recurse through steps starting at roots.
+    // depth first through steps starting at roots, listing each step when it
+    // is first reached (preorder).  iterative, with an explicit path, so deep
+    // graphs can't overflow the stack.  a step is on the path until its kids
+    // are done; reaching a step that is on the path means a cycle
     @SuppressWarnings("unchecked")
     public List<T> getSortedSteps() {
         if (_sortedSteps == null) {
             int depthFirstOrder = 0;
-            _sortedSteps = new ArrayList<T>();
-            Set<T> poppedSteps = new HashSet<T>(); // steps whose kids are done
-                                                   // processing
+            List<T> sortedSteps = new ArrayList<T>(_stepsByName.size());
+            // false: on the path.  true: kids are done processing
+            Map<WorkflowStep, Boolean> kidsDone = new HashMap<WorkflowStep, Boolean>();
+            List<WorkflowStep> path = new ArrayList<WorkflowStep>();
+            List<Integer> nextKid = new ArrayList<Integer>(); // per step on path
+
             for (T rootStep : _rootSteps) {
-                rootStep.addToList((List<WorkflowStep>) _sortedSteps,
-                        (Set<WorkflowStep>) poppedSteps);
-                poppedSteps.add(rootStep);
+                if (kidsDone.containsKey(rootStep)) continue;
+                sortedSteps.add(rootStep);
+                kidsDone.put(rootStep, false);
+                path.add(rootStep);
+                nextKid.add(0);
+
+                while (!path.isEmpty()) {
+                    int top = path.size() - 1;
+                    List<WorkflowStep> kids = path.get(top).getChildren();
+                    int k = nextKid.get(top);
+                    if (k == kids.size()) {
+                        kidsDone.put(path.remove(top), true);
+                        nextKid.remove(top);
+                        continue;
+                    }
+                    nextKid.set(top, k + 1);
+                    WorkflowStep kid = kids.get(k);
+                    Boolean done = kidsDone.get(kid);
+                    if (done == null) {
+                        sortedSteps.add((T) kid);
+                        kidsDone.put(kid, false);
+                        path.add(kid);
+                        nextKid.add(0);
+                    }
+                    else if (!done) {
+                        List<WorkflowStep> cycle = new ArrayList<WorkflowStep>(
+                                path.subList(path.indexOf(kid), path.size()));
+                        cycle.add(kid);
+                        kid.cycleError(cycle);
+                    }
+                }
             }
             // second pass to give everybody their order number;
-            for (T step : _sortedSteps)
+            for (T step : sortedSteps)
                 step.setDepthFirstOrder(depthFirstOrder++);
+            _sortedSteps = sortedSteps;
         }
         return _sortedSteps;
     }
 
+    // once the graph is complete, pack its links into a GraphIndex.  the
+    // steps' links can't change after this (but see convertToUndo)
+    void freeze() {
+        _index = new GraphIndex(getSortedSteps());
+    }
+
+    // null if not frozen
+    GraphIndex getIndex() {
+        return _index;
+    }
+
     Map<String, T> getStepsByName() {
         return _stepsByName;
     }
@@ -273,7 +323,8 @@ public class WorkflowGraph<T extends WorkflowStep> implements WorkflowXmlContain
         Set<T> stepsWithExternalDepends = new HashSet<T>();
         Map<String, T> externalName2Step = new HashMap<String, T>();
         // pass through steps to find all externalNames and dependsExternal
-        for (T step : getSortedSteps()) {
+        // (the steps are sorted, and checked for cycles, once linked)
+        for (T step : getSteps()) {
             if (step.getExternalName() != null) {
                 if (externalName2Step.containsKey(step.getExternalName()))
                     Utilities.error("Step " + step.getBaseName() + " in graph "
@@ -393,10 +444,11 @@ public class WorkflowGraph<T extends WorkflowStep> implements WorkflowXmlContain
         // confirm that caller has values for each of this graph's declared
         // parameters. gather all such errors into fileErrorsMap for reporting
         // in total later
+        // (sibling subgraphs are expanded in parallel, and share paramErrorsMap)
         for (ParamDeclaration decl : _paramDeclarations) {
 	  if (!paramValues.containsKey(decl.getName()) && decl.getDefault() != null) 
 	      paramValues.put(decl.getName(), decl.getDefault());
-            if (!paramValues.containsKey(decl.getName())) {
+            if (!paramValues.containsKey(decl.getName())) synchronized (paramErrorsMap) {
                 if (!paramErrorsMap.containsKey(callerXmlFileName))
                     paramErrorsMap.put(callerXmlFileName,
                             new HashMap<String, List<String>>());
@@ -486,20 +538,14 @@ public class WorkflowGraph<T extends WorkflowStep> implements WorkflowXmlContain
 
         // reset root and leaf sets
         setRootsAndLeafs();
+        freeze();
 
         // make sure all undoable steps in db have state set
-        PreparedStatement undoStepPstmt = WorkflowStep.getPreparedUndoUpdateStmt(
-                _workflow.getDbConnection(), _workflow.getId(),
-                _workflow.getWorkflowStepTable());
-        try {
-            for (WorkflowStep step : getSteps()) {
-                undoStepPstmt.setString(1, step.getFullName());
-                undoStepPstmt.execute();
-            }
-        }
-        finally {
-            undoStepPstmt.close();
-        }
+        String sql = WorkflowStep.getUndoUpdateSql(_workflow.getWorkflowStepTable());
+        List<Object[]> rows = new ArrayList<Object[]>();
+        for (WorkflowStep step : getSteps())
+            rows.add(new Object[] { Workflow.READY, step.getFullName(), _workflow.getId() });
+        _workflow.getStatements().batch(sql, rows);
     }
 
     // //////////////////////////////////////////////////////////////////////
@@ -527,81 +573,142 @@ public class WorkflowGraph<T extends WorkflowStep> implements WorkflowXmlContain
         if (stepTableEmpty) return "Step table empty";
 
         String workflowStepTable = getWorkflow().getWorkflowStepTable();
-        String sql = "select name, params_digest, depends_string, step_class, state, workflow_step_id"
+        String sql = "select name, params_digest, depends_string, step_class, state, workflow_step_id,"
+                + " source_xml, subgraph_xml"
                 + " from "
                 + workflowStepTable
-                + " where workflow_id = "
-                + _workflow.getId() + " order by depth_first_order";
-
-        Statement stmt = null;
-        ResultSet rs = null;
-        PreparedStatement paramValuesStmt = null;
+                + " where workflow_id = ?"
+                + " order by depth_first_order";
 
         StringBuffer diffs = new StringBuffer();
         StringBuffer errors = new StringBuffer();
 
-        List<String> notInDb = new ArrayList<String>(_stepsByName.keySet());
-
-        try {
-            stmt = _workflow.getDbConnection().createStatement();
-	    paramValuesStmt =
-		WorkflowStep.getPreparedParamValStmt(getWorkflow().getDbConnection(),
-						     getWorkflow().getWorkflowStepParamValTable());
-	    
-            rs = stmt.executeQuery(sql);
-            
-            while (rs.next()) {
-                String dbName = rs.getString(1);
-                String dbParamsDigest = rs.getString(2);
-                String dbDependsString = rs.getString(3);
-                String dbClassName = rs.getString(4);
-                String dbState = rs.getString(5);
-                Integer dbId = rs.getInt(6);
-
-                T step = _stepsByName.get(dbName);
-
-                if (step == null) {
-                    String diff = "Step '"
-                            + dbName
-                            + "' has been deleted (or excluded) from the XML file";
-                    diffs.append(diff);
-                    if (!(dbState.equals(Workflow.READY) || dbState.equals(Workflow.ON_DECK))) {
-                        errors.append(diff + " while in the state '" + dbState
-                                + '"' + NL + NL);
-                    }
-                } else {
-                    notInDb.remove(dbName);
-
-                    // update diffs and errors depending on mismatch found, if any
-                    checkStepMismatch(step, dbId, dbName, dbParamsDigest, dbDependsString, dbClassName,
-                        dbState, diffs, errors, paramValuesStmt);
+        Set<String> notInDb = new LinkedHashSet<String>(_stepsByName.keySet());
+
+        // first pass: find the steps whose params digest differs, so their
+        // db param values can be read in one query, rather than one per step.
+        // each digest is compared once, here
+        List<DbStepRow> dbSteps = new ArrayList<DbStepRow>();
+        Set<Integer> changedParamsIds = new HashSet<Integer>();
+        _outdatedDigests = 0;
+        _outdatedXmlFileNames = 0;
+        _workflow.getReadStatements().query(sql, rs -> {
+            DbStepRow dbStep = new DbStepRow(rs);
+            dbSteps.add(dbStep);
+            T step = _stepsByName.get(dbStep.name);
+            if (step == null) return;
+            dbStep.paramsMatch = step.paramsDigestMatches(dbStep.paramsDigest);
+            boolean outdated = dbStep.paramsMatch && !ParamsDigest.isCurrent(dbStep.paramsDigest);
+            step.setDbParamsDigestOutdated(outdated);
+            if (outdated) _outdatedDigests++;
+            if (!Objects.equals(dbStep.sourceXml, step.getSourceXmlFileName())
+                    || !Objects.equals(dbStep.subgraphXml, step.getSubgraphXmlFileName()))
+                _outdatedXmlFileNames++;
+            if (!dbStep.paramsMatch) changedParamsIds.add(dbStep.id);
+        }, _workflow.getId());
+
+        Map<Integer, Map<String, String>> dbParamValues = getDbParamValues(changedParamsIds);
+
+        for (DbStepRow dbStep : dbSteps) {
+            T step = _stepsByName.get(dbStep.name);
+
+            if (step == null) {
+                String diff = "Step '"
+                        + dbStep.name
+                        + "' has been deleted (or excluded) from the XML file";
+                diffs.append(diff);
+                if (!(dbStep.state.equals(Workflow.READY) || dbStep.state.equals(Workflow.ON_DECK))) {
+                    errors.append(diff + " while in the state '" + dbStep.state
+                            + '"' + NL + NL);
                 }
+            } else {
+                notInDb.remove(dbStep.name);
+
+                // update diffs and errors depending on mismatch found, if any
+                Map<String, String> stepParamValues = dbParamValues.get(dbStep.id);
+                if (stepParamValues == null) stepParamValues = new LinkedHashMap<String, String>();
+                checkStepMismatch(step, dbStep.name, dbStep.paramsDigest, dbStep.paramsMatch, dbStep.dependsString,
+                    dbStep.className, dbStep.state, diffs, errors, stepParamValues);
             }
+        }
 
-            if (notInDb.size() != 0) {
-                diffs.append("The following steps are in the XML graph, but not yet in the WorkflowStep table");
-                for (String t : notInDb)
-                    diffs.append("   " + t + NL);
-            }
+        if (notInDb.size() != 0) {
+            diffs.append("The following steps are in the XML graph, but not yet in the WorkflowStep table");
+            for (String t : notInDb)
+                diffs.append("   " + t + NL);
+        }
 
-            if (errors.length() != 0) {
-                _workflow.log(errors.toString());
-                Utilities.error("The XML graph has changed illegally.  See controller.log for details");
-            }
-            return diffs.toString();
+        if (errors.length() != 0) {
+            _workflow.log(errors.toString());
+            Utilities.error("The XML graph has changed illegally.  See controller.log for details");
         }
-        finally {
-            if (rs != null) rs.close();
-            if (stmt != null) stmt.close();
-            if (paramValuesStmt != null) paramValuesStmt.close();
+        return diffs.toString();
+    }
+
+    // how many steps' params digests in the db are version 1 (see
+    // ParamsDigest), as of the last inDbExactly
+    int getOutdatedDigestCount() {
+        return _outdatedDigests;
+    }
+
+    // how many steps' source or subgraph file names in the db differ (eg,
+    // are missing, from older versions of ReFlow), as of the last inDbExactly
+    int getOutdatedXmlFileNameCount() {
+        return _outdatedXmlFileNames;
+    }
+
+    // a row of the step table, as inDbExactly reads it
+    private static class DbStepRow {
+        final String name;
+        final String paramsDigest;
+        final String dependsString;
+        final String className;
+        final String state;
+        final int id;
+        final String sourceXml;
+        final String subgraphXml;
+        boolean paramsMatch;  // if the step is in the graph
+
+        DbStepRow(ResultSet rs) throws SQLException {
+            name = rs.getString(1);
+            paramsDigest = rs.getString(2);
+            dependsString = rs.getString(3);
+            className = rs.getString(4);
+            state = rs.getString(5);
+            id = rs.getInt(6);
+            sourceXml = rs.getString(7);
+            subgraphXml = rs.getString(8);
         }
     }
 
-    // allow ready steps to add new
-    void checkStepMismatch(T step, Integer dbId, String dbName, String dbParamsDigest,
+    // the db param values of the given steps, by step id, read in one ordered
+    // scan of the workflow's param values.  null values are read as ""
+    private Map<Integer, Map<String, String>> getDbParamValues(Set<Integer> stepIds)
+            throws SQLException {
+        Map<Integer, Map<String, String>> paramValues = new HashMap<Integer, Map<String, String>>();
+        if (stepIds.isEmpty()) return paramValues;
+
+        String sql = WorkflowStep.getParamValuesSql(getWorkflow().getWorkflowStepTable(),
+                getWorkflow().getWorkflowStepParamValTable());
+        _workflow.getReadStatements().query(sql, rs -> {
+            int stepId = rs.getInt(1);
+            if (!stepIds.contains(stepId)) return;
+            Map<String, String> values = paramValues.get(stepId);
+            if (values == null) {
+                values = new LinkedHashMap<String, String>();
+                paramValues.put(stepId, values);
+            }
+            String paramValue = rs.getString(3);
+            values.put(rs.getString(2), paramValue == null ? "" : paramValue);
+        }, _workflow.getId());
+        return paramValues;
+    }
+
+    // allow ready steps to add new.  paramsMatch: dbParamsDigest is of the
+    // step's params
+    void checkStepMismatch(T step, String dbName, String dbParamsDigest, boolean paramsMatch,
             String dbDependsString, String dbClassName, String dbState,
-            StringBuffer diffs, StringBuffer errors, PreparedStatement paramValuesStmt)
-                throws SQLException {
+            StringBuffer diffs, StringBuffer errors, Map<String, String> dbParamValues) {
 
         boolean stepClassMatch = (dbClassName == null && step.getStepClassName() == null)
                 || ((dbClassName != null && step.getStepClassName() != null)
@@ -615,7 +722,7 @@ public class WorkflowGraph<T extends WorkflowStep> implements WorkflowXmlContain
         // be passed to them. as long as existing steps have matching
         // param digests, all is ok
         boolean mismatch =
-            (!step.getIsSubgraphCall() && !dbParamsDigest.equals(step.getParamsDigest()))
+            (!step.getIsSubgraphCall() && !paramsMatch)
             || !stepClassMatch
             || !step.getDependsString().equals(dbDependsString)
             || !step.getFullName().equals(dbName);
@@ -645,12 +752,12 @@ public class WorkflowGraph<T extends WorkflowStep> implements WorkflowXmlContain
           illegalChange |= (runningOrFailed || done);
         }
 
-        if (!dbParamsDigest.equals(step.getParamsDigest())) {
+        if (!paramsMatch) {
           diff.append("  old params digest:   " + dbParamsDigest + NL);
           diff.append("  new params digest:   " + step.getParamsDigest() + NL);
           Map<String,String> dbParamValuesDiff = new LinkedHashMap<String, String>();
           Map<String,String> newParamValuesDiff = new LinkedHashMap<String, String>();
-          illegalChange |= step.checkChangedParams(paramValuesStmt, dbId, dbParamsDigest, dbState, dbParamValuesDiff, newParamValuesDiff);
+          illegalChange |= step.checkChangedParams(dbParamValues, dbState, dbParamValuesDiff, newParamValuesDiff);
           diff.append("  unmatched old params:" + NL);
           for (String paramName : dbParamValuesDiff.keySet()) {
             diff.append("    " + paramName + ": " + dbParamValuesDiff.get(paramName) + NL);
@@ -679,11 +786,10 @@ public class WorkflowGraph<T extends WorkflowStep> implements WorkflowXmlContain
                 + " s, "
                 + workflowStepTrackingTable
                 + " t"
-                + " where s.workflow_id = "
-                + _workflow.getId()
-                + " and s.workflow_step_id = t.workflow_step_id and s.state = 'READY'";
+                + " where s.workflow_id = ?"
+                + " and s.workflow_step_id = t.workflow_step_id and s.state = ?";
 
-        Set<String> stepNamesInDb = getStepNamesInDb(sql);
+        Set<String> stepNamesInDb = getStepNamesInDb(sql, _workflow.getId(), Workflow.READY);
         if (stepNamesInDb.size() != 0) {
             String msg = NL
                     + "Error. The following steps are READY but have rows in "
@@ -699,15 +805,23 @@ public class WorkflowGraph<T extends WorkflowStep> implements WorkflowXmlContain
 
         sql = "delete from " + workflowStepParamValTable
 	    + " where workflow_step_id in (select workflow_step_id from "
-	    + workflowStepTable + " where workflow_id = "
-                + _workflow.getId()
-                + " and (state = 'READY' or state = 'ON_DECK'))";
-        _workflow.executeSqlUpdate(sql);
-
-        sql = "delete from " + workflowStepTable + " where workflow_id = "
-                + _workflow.getId()
-                + " and (state = 'READY' or state = 'ON_DECK')";
-        _workflow.executeSqlUpdate(sql);
+	    + workflowStepTable + " where workflow_id = ?"
+                + " and (state = ? or state = ?))";
+        _workflow.executeSqlUpdate(sql, _workflow.getId(), Workflow.READY, Workflow.ON_DECK);
+
+        // their links, to parents and children.  rewritten by
+        // StepTableLoader.loadDependencies
+        String readySteps = "select workflow_step_id from " + workflowStepTable
+                + " where workflow_id = ? and (state = ? or state = ?)";
+        sql = "delete from " + getWorkflow().getWorkflowStepDependencyTable()
+                + " where parent_id in (" + readySteps + ")"
+                + " or child_id in (" + readySteps + ")";
+        _workflow.executeSqlUpdate(sql, _workflow.getId(), Workflow.READY, Workflow.ON_DECK,
+                _workflow.getId(), Workflow.READY, Workflow.ON_DECK);
+
+        sql = "delete from " + workflowStepTable + " where workflow_id = ?"
+                + " and (state = ? or state = ?)";
+        _workflow.executeSqlUpdate(sql, _workflow.getId(), Workflow.READY, Workflow.ON_DECK);
     }
 
     Set<String> getStepNamesInDb() throws SQLException {
@@ -715,28 +829,14 @@ public class WorkflowGraph<T extends WorkflowStep> implements WorkflowXmlContain
         String workflowStepTable = getWorkflow().getWorkflowStepTable();
 
         String sql = "select name" + " from " + workflowStepTable
-                + " where workflow_id = " + _workflow.getId()
+                + " where workflow_id = ?"
                 + " order by depth_first_order";
-        return getStepNamesInDb(sql);
+        return getStepNamesInDb(sql, _workflow.getId());
     }
 
-    Set<String> getStepNamesInDb(String sql) throws SQLException {
+    Set<String> getStepNamesInDb(String sql, Object... params) throws SQLException {
         Set<String> stepsInDb = new HashSet<String>();
-
-        Statement stmt = null;
-        ResultSet rs = null;
-        try {
-            stmt = _workflow.getDbConnection().createStatement();
-            rs = stmt.executeQuery(sql);
-            while (rs.next()) {
-                String dbName = rs.getString(1);
-                stepsInDb.add(dbName);
-            }
-        }
-        finally {
-            if (rs != null) rs.close();
-            if (stmt != null) stmt.close();
-        }
+        _workflow.getReadStatements().query(sql, rs -> stepsInDb.add(rs.getString(1)), params);
         return stepsInDb;
     }
 
@@ -749,10 +849,8 @@ public class WorkflowGraph<T extends WorkflowStep> implements WorkflowXmlContain
             Map<String, T> globalSteps, Map<String, String> globalConstants,
             Map<String, String> macroValuesMap) throws SAXException, Exception {
 
-        // iterate through all subgraph callers
-        // (if there is a global subgraph caller, it will be first in the list.
-        // this way we can gather global constants before any other graph is
-        // processed)
+        // iterate through all subgraph callers, checking them in order
+        List<T> callers = new ArrayList<T>();
         for (T subgraphCallerStep : _subgraphCallerSteps) {
 
             if (subgraphCallerStep.getExcludeFromGraph()) continue;
@@ -774,40 +872,56 @@ public class WorkflowGraph<T extends WorkflowStep> implements WorkflowXmlContain
                         + "'.  They are only allowed in the root graph.");
             }
 
-            String newPath = path + subgraphCallerStep.getBaseName() + ".";
+            callers.add(subgraphCallerStep);
+        }
 
-            WorkflowGraph<T> subgraph = WorkflowGraphUtil.createExpandedGraph(
+        // if there is a global subgraph caller, it will be first in the list.
+        // expand it by itself, so we gather global constants before any other
+        // graph is processed.  the other subgraphs don't depend on each other,
+        // so expand them in parallel, and insert them in the original order
+        ParallelExpansion.Expansion<T, WorkflowGraph<T>> expansion = subgraphCallerStep ->
+            WorkflowGraphUtil.createExpandedGraph(
                     classFactory, _workflow, paramErrorsMap,
-                    globalSteps, globalConstants, subgraphXmlFileName,
+                    globalSteps, globalConstants, subgraphCallerStep.getSubgraphXmlFileName(),
                     _xmlFileName, subgraphCallerStep.getSkipIfFileName(),
-                    subgraphCallerStep.getIsGlobal(), newPath,
+                    subgraphCallerStep.getIsGlobal(), path + subgraphCallerStep.getBaseName() + ".",
                     subgraphCallerStep.getBaseName(),
                     subgraphCallerStep.getParamValues(), macroValuesMap,
                     subgraphCallerStep, xmlFileNamesStack);
 
-            // after expanding kids, process dependsGlobal. We do this after
-            // expansion so that in root graph, the global graph is expanded
-            // before processing dependsGlobal in that graph. This is needed
-            // because it is not until we expand the global graph that the steps
-            // within it are instantiated. the steps in non-root graphs would be
-            // ok, but there are steps in root graph that have globalDepends, and
-            // they can't make the association before the global graph is expanded
-            for (T step : getSteps())
-                makeParentChildLinks(step.getDependsGlobalNames(),
-                        _globalStepsByName, step, true, null);
-
-            // inject it into the caller graph
-            WorkflowStep subgraphReturnStep = subgraphCallerStep.getChildren().get(
-                    0);
-            subgraphCallerStep.removeChild(subgraphReturnStep);
-            subgraphReturnStep.removeParent(subgraphCallerStep);
-            subgraph.attachToCallingStep(subgraphCallerStep);
-            subgraph.attachToReturnStep(subgraphReturnStep);
-
-            // add its steps to stepsByName
-            for (T subgraphStep : subgraph.getSteps()) {
-                _stepsByName.put(subgraphStep.getFullName(), subgraphStep);
-            }
+        int first = 0;
+        if (!callers.isEmpty() && callers.get(0).getIsGlobal()) {
+            insertSubgraph(callers.get(0), expansion.expand(callers.get(0)));
+            first = 1;
+        }
+        ParallelExpansion.expandAll(callers.subList(first, callers.size()), expansion,
+                this::insertSubgraph);
+    }
+
+    private void insertSubgraph(T subgraphCallerStep, WorkflowGraph<T> subgraph) throws Exception {
+
+        // after expanding kids, process dependsGlobal. We do this after
+        // expansion so that in root graph, the global graph is expanded
+        // before processing dependsGlobal in that graph. This is needed
+        // because it is not until we expand the global graph that the steps
+        // within it are instantiated. the steps in non-root graphs would be
+        // ok, but there are steps in root graph that have globalDepends, and
+        // they can't make the association before the global graph is expanded
+        for (T step : getSteps())
+            makeParentChildLinks(step.getDependsGlobalNames(),
+                    _globalStepsByName, step, true, null);
+
+        // inject it into the caller graph
+        WorkflowStep subgraphReturnStep = subgraphCallerStep.getChildren().get(
+                0);
+        subgraphCallerStep.removeChild(subgraphReturnStep);
+        subgraphReturnStep.removeParent(subgraphCallerStep);
+        subgraph.attachToCallingStep(subgraphCallerStep);
+        subgraph.attachToReturnStep(subgraphReturnStep);
+
+        // add its steps to stepsByName
+        for (T subgraphStep : subgraph.getSteps()) {
+            _stepsByName.put(subgraphStep.getFullName(), subgraphStep);
         }
     }
 
@@ -876,6 +990,159 @@ public class WorkflowGraph<T extends WorkflowStep> implements WorkflowXmlContain
         }
     }
 
+    // write this fully expanded (root) graph for CompiledGraphCache.  each
+    // step also remembers the file of the graph it came from
+    void writeCompiled(CompiledGraphCache.Output out) throws IOException {
+        Map<WorkflowStep, Integer> index = new HashMap<WorkflowStep, Integer>();
+        for (T step : getSteps()) index.put(step, index.size());
+
+        out.writeString(_xmlFileName);
+        out.writeStringMap(_constants);
+        out.writeStringMap(_globalConstants);
+        out.writeInt(_stepsByName.size());
+        for (Map.Entry<String, T> entry : _stepsByName.entrySet()) {
+            out.writeString(entry.getKey());
+            out.writeString(entry.getValue().workflowGraph.getXmlFileName());
+            entry.getValue().writeCompiled(out);
+        }
+        for (T step : getSteps()) step.writeCompiledLinks(out, index);
+        out.writeSteps(index, _rootSteps);
+        out.writeSteps(index, _leafSteps);
+        out.writeSteps(index, _subgraphCallerSteps);
+        List<String> globalNames = new ArrayList<String>();
+        for (Map.Entry<String, T> entry : _globalStepsByName.entrySet())
+            if (index.containsKey(entry.getValue())) globalNames.add(entry.getKey());
+        out.writeInt(globalNames.size());
+        for (String name : globalNames) {
+            out.writeString(name);
+            out.writeStep(index, _globalStepsByName.get(name));
+        }
+    }
+
+    static <S extends WorkflowStep> WorkflowGraph<S> readCompiled(CompiledGraphCache.Input in,
+            WorkflowClassFactory<S, WorkflowGraph<S>> classFactory, Workflow<S> workflow) throws IOException {
+        WorkflowGraph<S> graph = new WorkflowGraph<S>();
+        graph._workflow = workflow;
+        graph._xmlFileName = in.readString();
+        in.readStringMap(graph._constants);
+        graph.setGlobalConstants(new LinkedHashMap<String, String>());
+        in.readStringMap(graph._globalConstants);
+
+        // steps only use their graph for its workflow and file name, so one
+        // graph per file is enough
+        Map<String, WorkflowGraph<S>> sourceGraphs = new HashMap<String, WorkflowGraph<S>>();
+        sourceGraphs.put(graph._xmlFileName, graph);
+        List<S> steps = new ArrayList<S>();
+        for (int n = in.readInt(); n > 0; n--) {
+            String name = in.readString();
+            String sourceFile = in.readString();
+            S step;
+            try {
+                step = classFactory.getStepClass().getDeclaredConstructor().newInstance();
+            } catch (Exception e) {
+                throw new RuntimeException("Failed to create step: " + name, e);
+            }
+            step.readCompiled(in);
+            WorkflowGraph<S> sourceGraph = sourceGraphs.get(sourceFile);
+            if (sourceGraph == null) {
+                sourceGraph = new WorkflowGraph<S>();
+                sourceGraph.setWorkflow(workflow);
+                sourceGraph.setXmlFileName(sourceFile);
+                sourceGraphs.put(sourceFile, sourceGraph);
+            }
+            step.setWorkflowGraph(sourceGraph);
+            graph._stepsByName.put(name, step);
+            steps.add(step);
+        }
+        for (S step : steps) step.readCompiledLinks(in, steps);
+        in.readSteps(steps, graph._rootSteps);
+        in.readSteps(steps, graph._leafSteps);
+        in.readSteps(steps, graph._subgraphCallerSteps);
+        graph.setGlobalSteps(new HashMap<String, S>());
+        for (int n = in.readInt(); n > 0; n--)
+            graph._globalStepsByName.put(in.readString(), in.readStep(steps));
+        return graph;
+    }
+
+    // the expanded graph as the controller last wrote it to the db: the steps,
+    // their params and their dependencies, in three queries, without reading
+    // any XML.  steps have their names, ids, step classes, source and
+    // subgraph files and params, and their links in order, but nothing else
+    // from the XML (load types, ...).  null if the db has no dependencies
+    // for the workflow's steps, unless it has only one step, or no file
+    // names (in either case, written by an older controller)
+    static <S extends WorkflowStep> WorkflowGraph<S> readFromDb(
+            WorkflowClassFactory<S, WorkflowGraph<S>> classFactory, Workflow<S> workflow) throws SQLException {
+        WorkflowGraph<S> graph = new WorkflowGraph<S>();
+        graph._workflow = workflow;
+        graph.setGlobalConstants(new LinkedHashMap<String, String>());
+        graph.setGlobalSteps(new HashMap<String, S>());
+        StatementCache statements = workflow.getReadStatements();
+        String workflowStepTable = workflow.getWorkflowStepTable();
+
+        // as in readCompiled, one graph per source file
+        Map<String, WorkflowGraph<S>> sourceGraphs = new HashMap<String, WorkflowGraph<S>>();
+        Map<Integer, S> stepsById = new HashMap<Integer, S>();
+        final boolean[] missingFileNames = { false };
+        String sql = "select name, workflow_step_id, step_class, depends_string, depth_first_order,"
+                + " source_xml, subgraph_xml"
+                + " from " + workflowStepTable
+                + " where workflow_id = ?"
+                + " order by depth_first_order";
+        statements.query(sql, rs -> {
+            S step;
+            try {
+                step = classFactory.getStepClass().getDeclaredConstructor().newInstance();
+            } catch (Exception e) {
+                throw new RuntimeException("Failed to create step: " + rs.getString("NAME"), e);
+            }
+            step.setFromDbRow(rs);
+            String sourceFile = rs.getString("SOURCE_XML");
+            if (sourceFile == null) missingFileNames[0] = true;
+            WorkflowGraph<S> sourceGraph = sourceGraphs.get(sourceFile);
+            if (sourceGraph == null) {
+                sourceGraph = new WorkflowGraph<S>();
+                sourceGraph.setWorkflow(workflow);
+                sourceGraph.setXmlFileName(sourceFile);
+                sourceGraphs.put(sourceFile, sourceGraph);
+            }
+            step.setWorkflowGraph(sourceGraph);
+            graph._stepsByName.put(step.getFullName(), step);
+            stepsById.put(step.getId(), step);
+        }, workflow.getId());
+        if (missingFileNames[0]) return null;
+
+        List<StepTableLoader.Dependency> dependencies = new ArrayList<StepTableLoader.Dependency>();
+        sql = WorkflowStep.getDependenciesSql(workflowStepTable, workflow.getWorkflowStepDependencyTable());
+        statements.query(sql, rs -> dependencies.add(WorkflowStep.getDependencyFromDbRow(rs)), workflow.getId());
+        if (dependencies.isEmpty() && stepsById.size() > 1) return null;
+        linkDependencies(stepsById, dependencies);
+
+        sql = WorkflowStep.getParamValuesSql(workflowStepTable, workflow.getWorkflowStepParamValTable());
+        statements.query(sql, rs -> {
+            S step = stepsById.get(rs.getInt(1));
+            String paramValue = rs.getString(3);
+            if (step != null) step.getParamValues().put(rs.getString(2), paramValue == null ? "" : paramValue);
+        }, workflow.getId());
+
+        graph.setRootsAndLeafs();
+        return graph;
+    }
+
+    // link the steps as the dependencies say, each step's children and
+    // parents in the order they were written (see StepTableLoader.Dependency)
+    static <S extends WorkflowStep> void linkDependencies(Map<Integer, S> stepsById,
+            List<StepTableLoader.Dependency> dependencies) {
+        List<StepTableLoader.Dependency> sorted = new ArrayList<StepTableLoader.Dependency>(dependencies);
+        sorted.removeIf(d -> !stepsById.containsKey(d.parentId) || !stepsById.containsKey(d.childId));
+        sorted.sort(Comparator.comparingInt(d -> d.childOrder));
+        for (StepTableLoader.Dependency d : sorted)
+            stepsById.get(d.parentId).addChild(stepsById.get(d.childId));
+        sorted.sort(Comparator.comparingInt(d -> d.parentOrder));
+        for (StepTableLoader.Dependency d : sorted)
+            stepsById.get(d.childId).addParent(stepsById.get(d.parentId));
+    }
+
     /**
      * Creates a deep copy of this WorkflowGraph, including all steps and their relationships.
      * The copy includes the full recursive graph structure with all parent/child dependencies.
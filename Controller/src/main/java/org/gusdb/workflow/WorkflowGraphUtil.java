@@ -19,6 +19,24 @@ public class WorkflowGraphUtil {
 
     private final static String NL = System.getProperty("line.separator");
 
+    // reads a graph's XML file into an unexpanded graph.  tests build their
+    // graphs in memory instead
+    interface GraphReader {
+        <S extends WorkflowStep> WorkflowGraph<S> read(
+                WorkflowClassFactory<S,WorkflowGraph<S>> classFactory,
+                String xmlFileName, String callerXmlFileName) throws Exception;
+    }
+
+    static GraphReader graphReader = new GraphReader() {
+        @Override
+        public <S extends WorkflowStep> WorkflowGraph<S> read(
+                WorkflowClassFactory<S,WorkflowGraph<S>> classFactory,
+                String xmlFileName, String callerXmlFileName) throws Exception {
+            WorkflowXmlParser<S, WorkflowGraph<S>> parser = new WorkflowXmlParser<>(classFactory);
+            return parser.parseWorkflow(xmlFileName, callerXmlFileName);
+        }
+    };
+
     // //////////////////////////////////////////////////////////////////////
     // Static methods
     // //////////////////////////////////////////////////////////////////////
@@ -43,8 +61,7 @@ public class WorkflowGraphUtil {
         // /////////////////////
 
         // parse XML into objects
-        WorkflowXmlParser<S, WorkflowGraph<S>> parser = new WorkflowXmlParser<>(classFactory);
-        WorkflowGraph<S> graph = parser.parseWorkflow(xmlFileName, callerXmlFileName);
+        WorkflowGraph<S> graph = graphReader.read(classFactory, xmlFileName, callerXmlFileName);
         graph.setWorkflow(workflow);
         graph.setIsGlobal(isGlobal);
         graph.setGlobalConstants(globalConstants);
@@ -94,10 +111,56 @@ public class WorkflowGraphUtil {
         return graph;
     }
 
+    // use the compiled graph, if there is one built from the same files (see
+    // CompiledGraphCache).  otherwise build it, and save it for next time.
+    // either way, freeze it (see GraphIndex)
     public static <S extends WorkflowStep> WorkflowGraph<S> constructFullGraph(
         WorkflowClassFactory<S,WorkflowGraph<S>> classFactory, Workflow<S> workflow)
             throws FileNotFoundException, SAXException, IOException, Exception {
 
+        CompiledGraphCache cache = CompiledGraphCache.isEnabled() ? new CompiledGraphCache(workflow) : null;
+        WorkflowGraph<S> graph = cache == null ? null : cache.load(classFactory, workflow);
+        if (graph == null) {
+            graph = compileFullGraph(classFactory, workflow);
+            if (cache != null) cache.save(graph);
+        }
+        graph.freeze();
+        return graph;
+    }
+
+    // for reports that only need the graph's steps, links, files, states and
+    // params (workflow -d):  the graph as the controller last wrote it to
+    // the db (see WorkflowGraph.readFromDb), which is much faster than
+    // building it.  if the db doesn't have it, build it as constructFullGraph
+    // does.
+    //
+    // not for the controller's own commands: the steps have nothing else
+    // from the XML, and the db has the graph as of the controller's last
+    // start, which an undo (built from the XML) may not match
+    public static <S extends WorkflowStep> WorkflowGraph<S> constructGraphFromDb(
+        WorkflowClassFactory<S,WorkflowGraph<S>> classFactory, Workflow<S> workflow)
+            throws FileNotFoundException, SAXException, IOException, Exception {
+
+        WorkflowGraph<S> graph = null;
+        if (workflow.workflowTableInitialized()) {
+            workflow.getDbState();
+            graph = WorkflowGraph.readFromDb(classFactory, workflow);
+        }
+        if (graph == null) return constructFullGraph(classFactory, workflow);
+        System.err.println("Using graph from database");
+        graph.freeze();
+        return graph;
+    }
+
+    static <S extends WorkflowStep> WorkflowGraph<S> compileFullGraph(
+        WorkflowClassFactory<S,WorkflowGraph<S>> classFactory, Workflow<S> workflow)
+            throws FileNotFoundException, SAXException, IOException, Exception {
+
+        // read the throttle files now, rather than on whichever expansion
+        // thread first checks a step's load types
+        workflow.getLoadThrottleConfig(WorkflowStep.totalLoadType);
+        workflow.getFailThrottleConfig(WorkflowStep.totalLoadType);
+
         // create structures to hold global steps and constants
         Map<String, S> globalSteps = new HashMap<String, S>();
         Map<String, String> globalConstants = new LinkedHashMap<String, String>();
@@ -1,7 +1,5 @@
 package org.gusdb.workflow;
 
-import java.sql.Connection;
-
 import org.apache.commons.cli.CommandLine;
 import org.apache.commons.cli.Options;
 import org.gusdb.fgputil.CliUtil;
@@ -23,8 +21,8 @@ public class WorkflowParser {
 
         // create a parser, and parse the model file
         try (DatabaseInstance db = Workflow.getDb();
-             Connection conn = db.getDataSource().getConnection()) {
-          Workflow<WorkflowStep> workflow = new Workflow<WorkflowStep>(homeDirName, conn, db.getPlatform());
+             WorkflowConnections connections = new WorkflowConnections(db.getDataSource())) {
+          Workflow<WorkflowStep> workflow = new Workflow<WorkflowStep>(homeDirName, connections, db.getPlatform());
           WorkflowGraph<WorkflowStep> rootGraph = WorkflowGraphUtil.constructFullGraph(
               new WorkflowGraphClassFactory(), workflow);
           workflow.setWorkflowGraph(rootGraph);
@@ -9,6 +9,7 @@ import java.sql.Date;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.sql.Types;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
@@ -20,11 +21,6 @@ import java.util.Set;
 
 import javax.script.ScriptException;
 
-import org.gusdb.fgputil.EncryptionUtil;
-import org.gusdb.fgputil.db.platform.DBPlatform;
-import org.gusdb.fgputil.db.platform.Oracle;
-import org.gusdb.fgputil.db.platform.PostgreSQL;
-import org.gusdb.fgputil.script.JavaScript;
 import org.gusdb.fgputil.xml.Name;
 import org.gusdb.fgputil.xml.NamedValue;
 import org.gusdb.workflow.xml.WorkflowNode;
@@ -61,7 +57,6 @@ public class WorkflowStep implements Comparable<WorkflowStep>, WorkflowNode {
 
     // static
     static final String totalLoadType = "total";
-    private static final JavaScript javaScriptInterpreter = new JavaScript();
 
     // from construction and configuration
     // file referenced as subgraph in this step
@@ -73,6 +68,8 @@ public class WorkflowStep implements Comparable<WorkflowStep>, WorkflowNode {
     private String path = "";
     private List<WorkflowStep> parents = new ArrayList<WorkflowStep>();
     private List<WorkflowStep> children = new ArrayList<WorkflowStep>();
+    private GraphIndex graphIndex;  // if frozen, parents and children are views on it
+    private int graphPosition;
     private boolean isSubgraphCall;
     private boolean isSubgraphReturn;
     // set iff this step is call or return of a global subgraph.
@@ -81,6 +78,7 @@ public class WorkflowStep implements Comparable<WorkflowStep>, WorkflowNode {
     // if this step is a caller, its associated return step.
     public WorkflowStep subgraphReturnStep;
     private String paramsDigest;
+    private boolean dbParamsDigestOutdated; // db has the version 1 digest of our params
     private int depthFirstOrder;
     private Set<String> loadTypes;
     private Set<String> failTypes;
@@ -243,6 +241,10 @@ public class WorkflowStep implements Comparable<WorkflowStep>, WorkflowNode {
         return subgraphReturnStep;
     }
 
+    boolean getOffLine() {
+        return off_line;
+    }
+
     boolean getStopAfter() {
         return stop_after;
     }
@@ -256,7 +258,7 @@ public class WorkflowStep implements Comparable<WorkflowStep>, WorkflowNode {
         this.workflowGraph = workflowGraph;
     }
 
-  void checkLoadTypes() throws FileNotFoundException, IOException {
+  void checkLoadTypes() {
     if (isSubgraphCall)
       return;
     for (String loadType : loadTypes) {
@@ -321,10 +323,10 @@ public class WorkflowStep implements Comparable<WorkflowStep>, WorkflowNode {
 	try {
 	    if (includeIf_string != null) {
 		s = includeIf_string;
-		exclude = !javaScriptInterpreter.evaluateBooleanExpression(includeIf_string);
+		exclude = !BooleanExpression.evaluate(includeIf_string);
 	    } else if (excludeIf_string != null) {
 		s = excludeIf_string;
-		exclude = javaScriptInterpreter.evaluateBooleanExpression(excludeIf_string);
+		exclude = BooleanExpression.evaluate(excludeIf_string);
 	    }
 	} catch (ScriptException e) {
 	    error("The following includeIf or excludeIf expression is not formatted legally: '" + s + "'");
@@ -364,11 +366,16 @@ public class WorkflowStep implements Comparable<WorkflowStep>, WorkflowNode {
         return excludeFromGraph;
     }
 
+    // steps of the global graph are linked to from subgraphs that are
+    // expanded in parallel.  those links are made in the order a sequential
+    // expansion makes them (see ParallelExpansion.defer)
     void addParent(WorkflowStep parent) {
+        if (isShared() && ParallelExpansion.defer(() -> addParent(parent))) return;
         if (!parents.contains(parent)) parents.add(parent);
     }
 
     void removeParent(WorkflowStep parent) {
+        if (isShared() && ParallelExpansion.defer(() -> removeParent(parent))) return;
         parents.remove(parent);
     }
 
@@ -377,15 +384,22 @@ public class WorkflowStep implements Comparable<WorkflowStep>, WorkflowNode {
     }
 
     void addChild(WorkflowStep child) {
+        if (isShared() && ParallelExpansion.defer(() -> addChild(child))) return;
         if (!children.contains(child)) children.add(child);
     }
 
     void removeChild(WorkflowStep child) {
+        if (isShared() && ParallelExpansion.defer(() -> removeChild(child))) return;
         children.remove(child);
     }
 
+    private boolean isShared() {
+        return workflowGraph != null && workflowGraph.getIsGlobal();
+    }
+
     void removeAllChildren() {
         children = new ArrayList<WorkflowStep>();
+        graphIndex = null;
     }
 
     public List<WorkflowStep> getChildren() {
@@ -394,6 +408,10 @@ public class WorkflowStep implements Comparable<WorkflowStep>, WorkflowNode {
 
     // all kids, recursively
     void getDescendants(Set<WorkflowStep> accumulator) {
+        if (graphIndex != null) {
+            graphIndex.addDescendants(graphPosition, accumulator);
+            return;
+        }
         for (WorkflowStep kid : children) {
             if (!accumulator.contains(kid)) {
               accumulator.add(kid);
@@ -406,21 +424,29 @@ public class WorkflowStep implements Comparable<WorkflowStep>, WorkflowNode {
         return paramValues;
     }
 
-    // use poppedSteps to detect cycles. we have a cycle if we see this step
-    // again before it has completed processing its kids
-    void addToList(List<WorkflowStep> list, Set<WorkflowStep> poppedSteps) {
+    // called by GraphIndex.  from now on, links can't change
+    void freeze(GraphIndex index, int position) {
+        graphIndex = index;
+        graphPosition = position;
+        parents = index.getParents(position);
+        children = index.getChildren(position);
+    }
 
-        // check if we have already seen this step
-        if (list.contains(this)) {
-            if (poppedSteps.contains(this)) return; // ok if done processing
-                                                    // kids
-            else error("It is reached by an illegal cycle in the graph. Please check if it is referenced by a dependsExternal that might be causing the cycle ");
-        }
-        list.add(this);
-        for (WorkflowStep child : getChildren()) {
-            child.addToList(list, poppedSteps);
+    // position in the index, or -1 if the step isn't frozen in it
+    int getPosition(GraphIndex index) {
+        return graphIndex == index ? graphPosition : -1;
+    }
+
+    // cycle starts and ends with this step (see WorkflowGraph.getSortedSteps)
+    void cycleError(List<WorkflowStep> cycle) {
+        StringBuffer buf = new StringBuffer();
+        String delim = "";
+        for (WorkflowStep step : cycle) {
+            buf.append(delim + step.getFullName());
+            delim = " -> ";
         }
-        poppedSteps.add(this);
+        error("It is reached by an illegal cycle in the graph: " + buf + NL
+                + "Please check if it is referenced by a dependsExternal that might be causing the cycle ");
     }
 
     // insert a child between this step and its previous children
@@ -561,10 +587,20 @@ public class WorkflowStep implements Comparable<WorkflowStep>, WorkflowNode {
 
     String getParamsDigest() {
         if (paramsDigest == null)
-            paramsDigest = EncryptionUtil.encrypt(paramValues.toString());
+            paramsDigest = ParamsDigest.compute(paramValues);
         return paramsDigest;
     }
 
+    // true if a digest from the db (new or old style) is of our params
+    boolean paramsDigestMatches(String dbParamsDigest) {
+        return ParamsDigest.matches(dbParamsDigest, getParamsDigest(), paramValues);
+    }
+
+    // set by inDbExactly.  if so, initializeStepTable rewrites the digest
+    void setDbParamsDigestOutdated(boolean outdated) {
+        dbParamsDigestOutdated = outdated;
+    }
+
     int getDepthFirstOrder() {
         return depthFirstOrder;
     }
@@ -573,146 +609,134 @@ public class WorkflowStep implements Comparable<WorkflowStep>, WorkflowNode {
         depthFirstOrder = o;
     }
 
+    // the id is bound, from an IdBlockAllocator
     static PreparedStatement getPreparedInsertStmt(Connection dbConnection,
             int workflowId, String workflowStepTable) throws SQLException {
-        DBPlatform platform;
-        if (dbConnection.getMetaData().getDatabaseProductName().toLowerCase().startsWith("oracle")){
-            platform = new Oracle();
-        }else {
-            platform = new PostgreSQL();
-        }
-        return getPreparedInsertStmt(platform, dbConnection, workflowId, workflowStepTable);
-    }
-
-    static PreparedStatement getPreparedInsertStmt(DBPlatform platform, Connection dbConnection,
-                                                   int workflowId, String workflowStepTable) throws SQLException {
         String sql = "INSERT INTO "
                 + workflowStepTable
-                + " (workflow_step_id, workflow_id, name, state, state_handled, undo_state, undo_state_handled, off_line, stop_after, depends_string, step_class, params_digest, depth_first_order)"
-                + " VALUES (" + platform.getNextValExpression(null, workflowStepTable, "_sq") + ", "
-                + workflowId + ", ?, ?, 1, null, 1, 0, 0, ?, ?, ?, ?)";
+                + " (workflow_step_id, workflow_id, name, state, state_handled, undo_state, undo_state_handled, off_line, stop_after, depends_string, step_class, params_digest, depth_first_order, source_xml, subgraph_xml)"
+                + " VALUES (?, "
+                + workflowId + ", ?, ?, 1, null, 1, 0, 0, ?, ?, ?, ?, ?, ?)";
         return dbConnection.prepareStatement(sql);
     }
 
     static PreparedStatement getPreparedUpdateStmt(Connection dbConnection,
             int workflowId, String workflowStepTable) throws SQLException {
         String sql = "UPDATE " + workflowStepTable
-                + " SET depends_string = ?, depth_first_order = ?"
+                + " SET depends_string = ?, depth_first_order = ?,"
+                + " params_digest = COALESCE(?, params_digest),"
+                + " source_xml = ?, subgraph_xml = ?"
                 + " WHERE name = ?" + " AND workflow_id = " + workflowId;
         return dbConnection.prepareStatement(sql);
     }
 
-    static PreparedStatement getPreparedUndoUpdateStmt(Connection dbConnection,
-            int workflowId, String workflowStepTable) throws SQLException {
-        String sql = "UPDATE " + workflowStepTable + " SET undo_state = '"
-                + Workflow.READY + "'" + " WHERE name = ?"
-                + " AND undo_state is NULL" + " AND workflow_id = "
-                + workflowId;
-        return dbConnection.prepareStatement(sql);
+    // binds: undo_state, name, workflow_id
+    static String getUndoUpdateSql(String workflowStepTable) {
+        return "UPDATE " + workflowStepTable + " SET undo_state = ?"
+                + " WHERE name = ?"
+                + " AND undo_state is NULL" + " AND workflow_id = ?";
     }
 
+    // the id is bound, from an IdBlockAllocator
     static PreparedStatement getPreparedParamValInsertStmt(Connection dbConnection,
 							String workflowStepParamValTable) throws SQLException {
-        DBPlatform platform;
-        if (dbConnection.getMetaData().getDatabaseProductName().toLowerCase().startsWith("oracle")){
-            platform = new Oracle();
-        }else {
-            platform = new PostgreSQL();
-        }
-        return getPreparedParamValInsertStmt(platform, dbConnection, workflowStepParamValTable);
-    }
-
-    static PreparedStatement getPreparedParamValInsertStmt(DBPlatform platform, Connection dbConnection,
-                                                           String workflowStepParamValTable) throws SQLException {
         String sql = "INSERT INTO "
                 + workflowStepParamValTable
                 + " (workflow_step_param_value_id, workflow_step_id, param_name, param_value)"
-                + " VALUES (" + platform.getNextValExpression(null, workflowStepParamValTable, "_sq") + ", ?, ?, ?)";
+                + " VALUES (?, ?, ?, ?)";
         return dbConnection.prepareStatement(sql);
     }
 
-    static PreparedStatement getPreparedParamValStmt(Connection dbConnection,
-						     String workflowStepParamValTable) throws SQLException {
-        String sql = "select param_name,param_value from "
-	    + workflowStepParamValTable
-	    + " where workflow_step_id = ?";
-        return dbConnection.prepareStatement(sql);
+    // the param values of all of a workflow's steps, grouped by step.
+    // the workflow_id is bound
+    static String getParamValuesSql(String workflowStepTable,
+				    String workflowStepParamValTable) {
+        return "select v.workflow_step_id, v.param_name, v.param_value from "
+	    + workflowStepParamValTable + " v, " + workflowStepTable + " s"
+	    + " where s.workflow_id = ?"
+	    + " and v.workflow_step_id = s.workflow_step_id"
+	    + " order by v.workflow_step_id, v.workflow_step_param_value_id";
+    }
+
+    // a workflow's dependencies (the workflow_id is bound), read by
+    // getDependencyFromDbRow
+    static String getDependenciesSql(String workflowStepTable,
+            String workflowStepDependencyTable) {
+        return "select d.parent_id, d.child_id, d.child_order, d.parent_order from "
+            + workflowStepDependencyTable + " d, " + workflowStepTable + " s"
+            + " where s.workflow_id = ?"
+            + " and d.child_id = s.workflow_step_id";
     }
 
-    // write this step to the db, if not already there.
-    // called during workflow initialization
-    void initializeStepTable(Set<String> stepNamesInDb,
+    static StepTableLoader.Dependency getDependencyFromDbRow(ResultSet rs) throws SQLException {
+        return new StepTableLoader.Dependency(rs.getInt(1), rs.getInt(2), rs.getInt(3), rs.getInt(4));
+    }
+
+    // add this step's row to the insert batch, if not already in the db, or
+    // else to the update batch.  return true if it was an insert.
+    // called during workflow initialization, by StepTableLoader
+    boolean initializeStepTable(Set<String> stepNamesInDb, IdBlockAllocator stepIds,
         PreparedStatement insertStepTableStmt, PreparedStatement updateStepTableStmt)
             throws SQLException {
         if (stepNamesInDb.contains(getFullName())) {
             updateStepTableStmt.setString(1, getDependsString());
             updateStepTableStmt.setInt(2, getDepthFirstOrder());
-            updateStepTableStmt.setString(3, getFullName());
-            updateStepTableStmt.execute();
+            // null leaves the digest as is
+            if (dbParamsDigestOutdated) updateStepTableStmt.setString(3, getParamsDigest());
+            else updateStepTableStmt.setNull(3, Types.VARCHAR);
+            updateStepTableStmt.setString(4, getSourceXmlFileName());
+            updateStepTableStmt.setString(5, subgraphXmlFileName);
+            updateStepTableStmt.setString(6, getFullName());
+            updateStepTableStmt.addBatch();
+            return false;
         } else {
-            insertStepTableStmt.setString(1, getFullName());
-            insertStepTableStmt.setString(2, Workflow.READY);
-            insertStepTableStmt.setString(3, getDependsString());
-            insertStepTableStmt.setString(4, invokerClassName);
-            insertStepTableStmt.setString(5, getParamsDigest());
-            insertStepTableStmt.setInt(6, getDepthFirstOrder());
-            insertStepTableStmt.execute();
+            insertStepTableStmt.setInt(1, stepIds.next());
+            insertStepTableStmt.setString(2, getFullName());
+            insertStepTableStmt.setString(3, Workflow.READY);
+            insertStepTableStmt.setString(4, getDependsString());
+            insertStepTableStmt.setString(5, invokerClassName);
+            insertStepTableStmt.setString(6, getParamsDigest());
+            insertStepTableStmt.setInt(7, getDepthFirstOrder());
+            insertStepTableStmt.setString(8, getSourceXmlFileName());
+            insertStepTableStmt.setString(9, subgraphXmlFileName);
+            insertStepTableStmt.addBatch();
+            return true;
         }
     }
 
-    void initializeStepParamValTable(Set<String> stepNamesInDb, PreparedStatement insertStmt)
-	throws SQLException {
+    // add this step's param values to the insert batch, if it is new.
+    // return how many were added
+    int initializeStepParamValTable(Set<String> stepNamesInDb, IdBlockAllocator paramValIds,
+	PreparedStatement insertStmt) throws SQLException {
 
-	if (stepNamesInDb.contains(getFullName())) return;
+	if (stepNamesInDb.contains(getFullName())) return 0;
 	
         for (String paramName : paramValues.keySet()) {
             String paramValue = paramValues.get(paramName);
-            insertStmt.setInt(1, getId());
-            insertStmt.setString(2, paramName);
-            insertStmt.setString(3, paramValue);
-            insertStmt.execute();
-        }
-    }
-
-    Map<String, String> getDbParamValues(PreparedStatement stmt, Integer dbId) throws SQLException {
-	Map<String, String> dbParamValues = new LinkedHashMap<String, String>();
-	
-        ResultSet rs = null;
-        try {
-	    stmt.setInt(1, dbId);
-            rs = stmt.executeQuery();
-            while (rs.next()) {
-                String paramName = rs.getString(1);
-                String paramValue = rs.getString(2);
-		if (paramValue == null) paramValue = "";
-                dbParamValues.put(paramName, paramValue);
-            }
+            insertStmt.setInt(1, paramValIds.next());
+            insertStmt.setInt(2, getId());
+            insertStmt.setString(3, paramName);
+            insertStmt.setString(4, paramValue);
+            insertStmt.addBatch();
         }
-        finally {
-            if (rs != null) rs.close();
-        }
-	return dbParamValues;
+        return paramValues.size();
     }
 
     // update provided data structures with info about changed params
+    // dbParamValues:      this step's params in the db (see WorkflowGraph.getDbParamValues)
     // dbParamValuesDiff:  params that are in the db but are absent or different in memory
     // newParamValuesDiff: params that in memory but are absent or different in memory
-    // return true if the changes are illegal
-    boolean checkChangedParams(PreparedStatement paramValuesStatement,
-        Integer dbId,
-        String dbParamsDigest,
+    // return true if the changes are illegal.  called only if the params
+    // digest doesn't match
+    boolean checkChangedParams(Map<String, String> dbParamValues,
         String dbState,
         Map<String, String> dbParamValuesDiff,
-        Map<String, String> newParamValuesDiff) throws SQLException {
-
-	if (dbParamsDigest.equals(getParamsDigest())) return false;
+        Map<String, String> newParamValuesDiff) {
 
 	boolean illegalChange = false;
 	boolean runningOrFailed = dbState.equals(Workflow.RUNNING) || dbState.equals(Workflow.FAILED);
 	boolean done = dbState.equals(Workflow.DONE);
 
-	Map<String, String> dbParamValues = getDbParamValues(paramValuesStatement, dbId);
-
 	// find new params that are different
         for (String paramName : paramValues.keySet()) {
 	    String newValue = paramValues.get(paramName);
@@ -745,12 +769,24 @@ public class WorkflowStep implements Comparable<WorkflowStep>, WorkflowNode {
     }
 
     // static method
-    static String getBulkSnapshotSql(int workflow_id, String workflowStepTable) {
-        return "SELECT name, workflow_step_id, state, state_handled, skipped, undo_state, undo_state_handled, off_line, stop_after, process_id, start_time, end_time, host_machine"
+    private static final String SNAPSHOT_COLUMNS = "name, workflow_step_id, state, state_handled, skipped, undo_state, undo_state_handled, off_line, stop_after, process_id, start_time, end_time, host_machine";
+
+    // the workflow_id is bound
+    static String getBulkSnapshotSql(String workflowStepTable, boolean withChangeSeq) {
+        return "SELECT " + SNAPSHOT_COLUMNS
+                + (withChangeSeq ? ", change_seq" : "")
                 + " FROM "
                 + workflowStepTable
-                + " WHERE workflow_id = "
-                + workflow_id;
+                + " WHERE workflow_id = ?";
+    }
+
+    // rows stamped since a given change_seq (bound after the workflow_id)
+    static String getChangedSnapshotSql(String workflowStepTable) {
+        return "SELECT " + SNAPSHOT_COLUMNS + ", change_seq"
+                + " FROM "
+                + workflowStepTable
+                + " WHERE workflow_id = ?"
+                + " AND change_seq > ?";
     }
 
     void setFromDbSnapshot(ResultSet rs) throws SQLException {
@@ -771,6 +807,18 @@ public class WorkflowStep implements Comparable<WorkflowStep>, WorkflowNode {
         end_time = rs.getDate("END_TIME");
     }
 
+    // the fields of a step that are in its db row (see
+    // WorkflowGraph.readFromDb).  its full name is its name, and its source
+    // file is its graph's
+    void setFromDbRow(ResultSet rs) throws SQLException {
+        baseName = rs.getString("NAME");
+        workflow_step_id = rs.getInt("WORKFLOW_STEP_ID");
+        invokerClassName = rs.getString("STEP_CLASS");
+        dependsString = rs.getString("DEPENDS_STRING");
+        depthFirstOrder = rs.getInt("DEPTH_FIRST_ORDER");
+        subgraphXmlFileName = rs.getString("SUBGRAPH_XML");
+    }
+
     // interpolate variables into subgraphXmlFileName, param values, includeIf
     // and excludeIf
     // check is set to true only for final subsitution.
@@ -852,7 +900,7 @@ public class WorkflowStep implements Comparable<WorkflowStep>, WorkflowNode {
 
         if (check) {
 	    try {
-		javaScriptInterpreter.evaluateBooleanExpression(newIf);
+		BooleanExpression.evaluate(newIf);
 	    } catch (ScriptException e) {
 		error(NL + type + " is not a valid boolean expression " + NL + e);
 	    }
@@ -885,11 +933,85 @@ public class WorkflowStep implements Comparable<WorkflowStep>, WorkflowNode {
         }
         parents = temp2;
         children = temp;
+        graphIndex = null;
         boolean temp3 = isSubgraphCall;
         isSubgraphCall = isSubgraphReturn;
         isSubgraphReturn = temp3;
     }
 
+    // //////////////////////// compiled graph
+    // /////////////////////////////////////////
+
+    // the fields of a step in a fully expanded graph (see CompiledGraphCache).
+    // links to other steps are written separately, once all steps are known
+    void writeCompiled(CompiledGraphCache.Output out) throws IOException {
+        out.writeString(baseName);
+        out.writeString(path);
+        out.writeString(invokerClassName);
+        out.writeString(subgraphXmlFileName);
+        out.writeString(sourceXmlFileName);
+        out.writeString(externalName);
+        out.writeBoolean(isSubgraphCall);
+        out.writeBoolean(isSubgraphReturn);
+        out.writeBoolean(isGlobal);
+        out.writeString(undoRoot);
+        out.writeStrings(loadTypes);
+        out.writeStrings(failTypes);
+        out.writeString(includeIf_string);
+        out.writeString(excludeIf_string);
+        out.writeString(excludeIfNoXml_string);
+        out.writeByte(excludeFromGraph == null ? -1 : excludeFromGraph ? 1 : 0);
+        out.writeString(skipIfFileName);
+        out.writeStringMap(paramValues);
+        for (List<Name> names : Arrays.asList(dependsNames, dependsGlobalNames, dependsExternalNames)) {
+            out.writeInt(names.size());
+            for (Name name : names) out.writeString(name.getName());
+        }
+    }
+
+    void readCompiled(CompiledGraphCache.Input in) throws IOException {
+        baseName = in.readString();
+        path = in.readString();
+        invokerClassName = in.readString();
+        subgraphXmlFileName = in.readString();
+        sourceXmlFileName = in.readString();
+        externalName = in.readString();
+        isSubgraphCall = in.readBoolean();
+        isSubgraphReturn = in.readBoolean();
+        isGlobal = in.readBoolean();
+        undoRoot = in.readString();
+        in.readStrings(loadTypes);
+        in.readStrings(failTypes);
+        includeIf_string = in.readString();
+        excludeIf_string = in.readString();
+        excludeIfNoXml_string = in.readString();
+        byte exclude = in.readByte();
+        excludeFromGraph = exclude == -1 ? null : Boolean.valueOf(exclude == 1);
+        skipIfFileName = in.readString();
+        in.readStringMap(paramValues);
+        for (List<Name> names : Arrays.asList(dependsNames, dependsGlobalNames, dependsExternalNames)) {
+            for (int n = in.readInt(); n > 0; n--) {
+                Name name = new Name();
+                name.setName(in.readString());
+                names.add(name);
+            }
+        }
+    }
+
+    void writeCompiledLinks(CompiledGraphCache.Output out, Map<WorkflowStep, Integer> index) throws IOException {
+        out.writeStep(index, callingStep);
+        out.writeStep(index, subgraphReturnStep);
+        out.writeSteps(index, parents);
+        out.writeSteps(index, children);
+    }
+
+    void readCompiledLinks(CompiledGraphCache.Input in, List<? extends WorkflowStep> steps) throws IOException {
+        callingStep = in.readStep(steps);
+        subgraphReturnStep = in.readStep(steps);
+        in.readSteps(steps, parents);
+        in.readSteps(steps, children);
+    }
+
     // //////////////////////// utilities
     // /////////////////////////////////////////
 
@@ -905,8 +1027,8 @@ public class WorkflowStep implements Comparable<WorkflowStep>, WorkflowNode {
     }
 
 
-    protected void executeSqlUpdate(String sql) throws SQLException {
-        workflowGraph.getWorkflow().executeSqlUpdate(sql);
+    protected void executeSqlUpdate(String sql, Object... params) throws SQLException {
+        workflowGraph.getWorkflow().executeSqlUpdate(sql, params);
     }
 
     @Override
@@ -0,0 +1,67 @@
+package org.gusdb.workflow;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.Options;
+import org.gusdb.fgputil.CliUtil;
+import org.gusdb.workflow.xml.WorkflowXmlParser;
+
+/*
+ * Checks every graph file under $GUS_HOME/lib/xml/workflow (or another
+ * directory) against workflow.rng, without building a graph or touching the
+ * database.  A quick pre-flight before running a large workflow.
+ *
+ * Files are checked in parallel (see ParallelExpansion for the number of
+ * threads), sharing one compiled schema.  Problems are reported in file
+ * order.  Exits 1 if any file is invalid.
+ */
+public class WorkflowXmlValidator {
+
+    public static void main(String[] args) throws Exception {
+        String cmdName = System.getProperty("cmdName");
+
+        // process args
+        Options options = declareOptions();
+        String cmdlineSyntax = cmdName + " [-dir xmlDir]";
+        String cmdDescrip = "Validate all workflow graph xml files against the workflow schema.";
+        CommandLine cmdLine = CliUtil.parseOptions(cmdlineSyntax, cmdDescrip,
+                "", options, args);
+        String dirName = cmdLine.hasOption("dir") ? cmdLine.getOptionValue("dir")
+                : System.getProperty("GUS_HOME") + "/lib/xml/workflow";
+
+        List<Path> xmlFiles;
+        try (Stream<Path> paths = Files.walk(Paths.get(dirName))) {
+            xmlFiles = paths.filter(p -> Files.isRegularFile(p) && p.toString().endsWith(".xml"))
+                    .sorted().collect(Collectors.toList());
+        }
+
+        List<List<String>> problems = ParallelExpansion.expandAll(xmlFiles,
+                xmlFile -> WorkflowXmlParser.validate(xmlFile.toString()));
+
+        int invalid = 0;
+        for (int i = 0; i < xmlFiles.size(); i++) {
+            if (problems.get(i).isEmpty()) continue;
+            invalid++;
+            System.err.println(xmlFiles.get(i));
+            for (String problem : problems.get(i)) System.err.println("  " + problem);
+        }
+        System.out.println("Checked " + xmlFiles.size() + " files in " + dirName + ": "
+                + (invalid == 0 ? "all valid" : invalid + " invalid"));
+        System.exit(invalid == 0 ? 0 : 1);
+    }
+
+    private static Options declareOptions() {
+        Options options = new Options();
+
+        CliUtil.addOption(options, "dir", "Directory of graph xml files (default $GUS_HOME/lib/xml/workflow)", false);
+
+        return options;
+    }
+
+}
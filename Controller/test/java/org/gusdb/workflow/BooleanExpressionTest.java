@@ -0,0 +1,43 @@
+package org.gusdb.workflow;
+
+import javax.script.ScriptException;
+
+import junit.framework.Assert;
+
+import org.gusdb.fgputil.script.JavaScript;
+import org.junit.Test;
+
+public class BooleanExpressionTest {
+
+    // includeIf/excludeIf as they look after substitution, and some that
+    // BooleanExpression must leave to the interpreter
+    private static final String[] EXPRESSIONS = {
+        "true", "false", " true ", "(true)", "((false))",
+        "!true", "!!true", "! false",
+        "true && false", "true || false", "false || false && true",
+        "true || false && false", "(true || false) && false",
+        "!(false || 'x' != '') && true",
+        "'proteome' == 'genome'", "'genome' == 'genome'", "\"a\" == 'a'",
+        "'a' != 'b'", "'a' === 'a'", "'a' !== 'a'", "'' == ''", "' ' == ''",
+        "'a&&b' == 'a&&b'", "'(' != ')'", "'true' == 'true'",
+        "!true == false", "!'a' == false", "!('a' == 'b')",
+        "1 == 1", "1 == 2", "1.0 == 1", "1. == 1", "1.10 == 1.1", "0 == 0.0",
+        "10 != 10", "0.5 === 0.5",
+        // leading zeros: octal to the interpreter
+        "010 == 10", "010 == 8", "08 == 8", "00 == 0",
+        // left to the interpreter
+        "1 == '1'", "'' == false", "0 == false", "!''", "!'x'", "!0",
+        "1 + 1 == 2", "1e3 == 1000", "0x10 == 16", ".5 == 0.5",
+        "-1 == -1", "'a\\'b' == \"a'b\"", "'a' < 'b'",
+        "true == true == true", "'x'.length == 1",
+    };
+
+    @Test
+    public void testAgreesWithJavaScript() throws ScriptException {
+        JavaScript javaScript = new JavaScript();
+        for (String expression : EXPRESSIONS) {
+            Assert.assertEquals(expression, javaScript.evaluateBooleanExpression(expression),
+                    BooleanExpression.evaluate(expression));
+        }
+    }
+}
@@ -0,0 +1,252 @@
+package org.gusdb.workflow;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.lang.reflect.ParameterizedType;
+import java.lang.reflect.Type;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import junit.framework.Assert;
+
+import org.gusdb.fgputil.xml.Name;
+import org.gusdb.fgputil.xml.NamedValue;
+import org.junit.Before;
+import org.junit.Test;
+
+/*
+ * Every field of a step must come back from the compiled graph as it was
+ * written, or it is silently missing whenever the graph comes from the cache.
+ * So the steps' fields are filled by reflection, and a new field fails this
+ * test until it is written by WorkflowStep.writeCompiled (or, if it is not
+ * part of the compiled graph, listed below).
+ */
+public class CompiledGraphTest {
+
+    // compared as links to other steps
+    private static final Set<String> LINK_FIELDS = new HashSet<String>(Arrays.asList(
+            "parents", "children", "callingStep", "subgraphReturnStep", "workflowGraph"));
+
+    // not part of the compiled graph: derived from it, set when it is frozen
+    // or sorted, or read from the db
+    private static final Set<String> NOT_COMPILED_FIELDS = new HashSet<String>(Arrays.asList(
+            "graphIndex", "graphPosition", "paramsDigest", "dbParamsDigestOutdated",
+            "depthFirstOrder", "stepDir", "dependsString",
+            "workflow_step_id", "state", "state_handled", "undo_state", "undo_state_handled",
+            "skipped", "off_line", "stop_after", "process_id", "start_time", "end_time",
+            "prevState", "prevOffline", "prevStopAfter",
+            // RunnableWorkflowStep
+            "isInvoked", "invokedButNotRunningCount", "loadTypeIds", "failTypeIds",
+            "processMissing", "stateNow"));
+
+    private WorkflowGraph<RunnableWorkflowStep> graph;
+
+    // an expanded graph:  a -> sub -> sub.x -> sub.return -> z,  and a global
+    // step g -> z, with steps from three files
+    @Before
+    public void createGraph() throws Exception {
+        graph = new WorkflowGraph<RunnableWorkflowStep>();
+        graph.setXmlFileName("root.xml");
+        graph.addConstant(new NamedValue("c1", "v1"));
+        Map<String, String> globalConstants = new LinkedHashMap<String, String>();
+        globalConstants.put("gc1", "gv1");
+        graph.setGlobalConstants(globalConstants);
+        Map<String, RunnableWorkflowStep> globalSteps = new HashMap<String, RunnableWorkflowStep>();
+        graph.setGlobalSteps(globalSteps);
+
+        WorkflowGraph<RunnableWorkflowStep> subgraph = new WorkflowGraph<RunnableWorkflowStep>();
+        subgraph.setXmlFileName("sub.xml");
+        WorkflowGraph<RunnableWorkflowStep> globalGraph = new WorkflowGraph<RunnableWorkflowStep>();
+        globalGraph.setXmlFileName("global.xml");
+
+        RunnableWorkflowStep a = addStep("a", graph);
+        RunnableWorkflowStep sub = addStep("sub", graph);
+        RunnableWorkflowStep x = addStep("sub.x", subgraph);
+        RunnableWorkflowStep subReturn = addStep("sub.return", graph);
+        RunnableWorkflowStep g = addStep("g", globalGraph);
+        RunnableWorkflowStep z = addStep("z", graph);
+        link(a, sub);
+        link(sub, x);
+        link(x, subReturn);
+        link(subReturn, z);
+        link(g, z);
+        link(a, z);
+        set(sub, "subgraphReturnStep", subReturn);
+        set(x, "callingStep", sub);
+        set(subReturn, "callingStep", sub);
+        globalSteps.put("g", g);
+
+        graph.setRootsAndLeafs();
+        graphList("_subgraphCallerSteps").add(sub);
+    }
+
+    @Test
+    public void testReadBackAsWritten() throws Exception {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (CompiledGraphCache.Output out = new CompiledGraphCache.Output(bytes)) {
+            graph.writeCompiled(out);
+        }
+        WorkflowGraph<RunnableWorkflowStep> copy;
+        try (CompiledGraphCache.Input in = new CompiledGraphCache.Input(
+                new ByteArrayInputStream(bytes.toByteArray()))) {
+            copy = WorkflowGraph.readCompiled(in, new RunnableWorkflow.RunnableWorkflowGraphClassFactory(), null);
+            Assert.assertEquals("bytes left over", -1, in.read());
+        }
+
+        Assert.assertEquals(graph.getXmlFileName(), copy.getXmlFileName());
+        for (String field : new String[] { "_constants", "_globalConstants" })
+            Assert.assertEquals(field, get(graph, field), get(copy, field));
+        Assert.assertEquals(names(graph.getSteps()), names(copy.getSteps()));
+        for (String field : new String[] { "_rootSteps", "_leafSteps", "_subgraphCallerSteps" })
+            Assert.assertEquals(field, names(graphList(graph, field)), names(graphList(copy, field)));
+        Assert.assertEquals(names(globalSteps(graph)), names(globalSteps(copy)));
+
+        List<RunnableWorkflowStep> steps = new ArrayList<RunnableWorkflowStep>(graph.getSteps());
+        List<RunnableWorkflowStep> copies = new ArrayList<RunnableWorkflowStep>(copy.getSteps());
+        for (int i = 0; i < steps.size(); i++) {
+            RunnableWorkflowStep step = steps.get(i), copied = copies.get(i);
+            String name = step.getFullName();
+            for (Field field : stepFields()) {
+                if (LINK_FIELDS.contains(field.getName()) || NOT_COMPILED_FIELDS.contains(field.getName())) continue;
+                Assert.assertEquals(name + " " + field.getName(),
+                        comparable(field.get(step)), comparable(field.get(copied)));
+            }
+            Assert.assertEquals(name, step.workflowGraph.getXmlFileName(), copied.workflowGraph.getXmlFileName());
+            Assert.assertEquals(name, names(step.getParents()), names(copied.getParents()));
+            Assert.assertEquals(name, names(step.getChildren()), names(copied.getChildren()));
+            Assert.assertEquals(name, nameOf(get(step, "callingStep")), nameOf(get(copied, "callingStep")));
+            Assert.assertEquals(name, nameOf(step.subgraphReturnStep), nameOf(copied.subgraphReturnStep));
+        }
+    }
+
+    private RunnableWorkflowStep addStep(String name, WorkflowGraph<RunnableWorkflowStep> sourceGraph)
+            throws Exception {
+        RunnableWorkflowStep step = new RunnableWorkflowStep();
+        step.setName(name);
+        graph.addStep(step);
+        step.setWorkflowGraph(sourceGraph);
+        for (Field field : stepFields()) {
+            if (LINK_FIELDS.contains(field.getName()) || NOT_COMPILED_FIELDS.contains(field.getName())) continue;
+            fill(step, field);
+        }
+        return step;
+    }
+
+    // a value unlike the default, and unlike other steps' and fields'
+    @SuppressWarnings("unchecked")
+    private static void fill(WorkflowStep step, Field field) throws Exception {
+        String value = step.getBaseName() + "-" + field.getName();
+        Class<?> type = field.getType();
+        if (field.getName().equals("baseName")) return;  // the step's name
+        if (type == String.class) field.set(step, value);
+        else if (type == boolean.class) field.setBoolean(step, true);
+        else if (type == Boolean.class) field.set(step, Boolean.FALSE);
+        else if (type == int.class) field.setInt(step, value.length());
+        else if (Map.class.isAssignableFrom(type)) {
+            Map<String, String> map = (Map<String, String>) field.get(step);
+            map.put(value + "-1", "one");
+            map.put(value + "-2", "$$two$$");
+        }
+        else if (Collection.class.isAssignableFrom(type)) {
+            Type element = ((ParameterizedType) field.getGenericType()).getActualTypeArguments()[0];
+            Collection<Object> collection = (Collection<Object>) field.get(step);
+            for (int i = 1; i <= 2; i++) {
+                if (element == String.class) collection.add(value + "-" + i);
+                else if (element == Name.class) collection.add(new Name(value + "-" + i));
+                else Assert.fail("Don't know how to fill " + field);
+            }
+        }
+        else Assert.fail("Don't know how to fill " + field + ".  Write it to the compiled graph, "
+                + "and teach this test to fill it, or list it as not compiled");
+    }
+
+    // Names, by their names
+    private static Object comparable(Object value) {
+        if (!(value instanceof Collection)) return value;
+        List<Object> list = new ArrayList<Object>();
+        for (Object o : (Collection<?>) value) list.add(o instanceof Name ? ((Name) o).getName() : o);
+        return list;
+    }
+
+    private static List<Field> stepFields() {
+        List<Field> fields = new ArrayList<Field>();
+        for (Class<?> c = RunnableWorkflowStep.class; c != Object.class; c = c.getSuperclass()) {
+            for (Field field : c.getDeclaredFields()) {
+                if (Modifier.isStatic(field.getModifiers())) continue;
+                field.setAccessible(true);
+                fields.add(field);
+            }
+        }
+        return fields;
+    }
+
+    private static void link(WorkflowStep parent, WorkflowStep child) {
+        parent.addChild(child);
+        child.addParent(parent);
+    }
+
+    private static List<String> names(Collection<? extends WorkflowStep> steps) {
+        List<String> names = new ArrayList<String>();
+        for (WorkflowStep step : steps) names.add(step.getFullName());
+        return names;
+    }
+
+    private static Map<String, String> names(Map<String, ? extends WorkflowStep> steps) {
+        Map<String, String> names = new HashMap<String, String>();
+        for (Map.Entry<String, ? extends WorkflowStep> e : steps.entrySet())
+            names.put(e.getKey(), e.getValue().getFullName());
+        return names;
+    }
+
+    private static String nameOf(Object step) {
+        return step == null ? null : ((WorkflowStep) step).getFullName();
+    }
+
+    private List<RunnableWorkflowStep> graphList(String field) throws Exception {
+        return graphList(graph, field);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static List<RunnableWorkflowStep> graphList(WorkflowGraph<RunnableWorkflowStep> graph, String field)
+            throws Exception {
+        return (List<RunnableWorkflowStep>) get(graph, field);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Map<String, RunnableWorkflowStep> globalSteps(WorkflowGraph<RunnableWorkflowStep> graph)
+            throws Exception {
+        return (Map<String, RunnableWorkflowStep>) get(graph, "_globalStepsByName");
+    }
+
+    private static Object get(Object o, String name) throws Exception {
+        Field field = findField(o.getClass(), name);
+        return field.get(o);
+    }
+
+    private static void set(Object o, String name, Object value) throws Exception {
+        findField(o.getClass(), name).set(o, value);
+    }
+
+    private static Field findField(Class<?> c, String name) throws NoSuchFieldException {
+        for (; c != null; c = c.getSuperclass()) {
+            try {
+                Field field = c.getDeclaredField(name);
+                field.setAccessible(true);
+                return field;
+            }
+            catch (NoSuchFieldException e) {
+                // try the superclass
+            }
+        }
+        throw new NoSuchFieldException(name);
+    }
+}
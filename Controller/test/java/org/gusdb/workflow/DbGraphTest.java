@@ -0,0 +1,94 @@
+package org.gusdb.workflow;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+
+public class DbGraphTest {
+
+    private static final int GRAPHS = 300;
+    private static final int MAX_STEPS = 40;
+
+    // the graph read back from the dependency rows the controller writes
+    // must have each step's children and parents in the same order, so its
+    // steps sort (and -d lists them) as the graph that was written
+    @Test
+    public void testReadBackAsWritten() throws IOException {
+        Random random = new Random(20261018);
+        for (int g = 0; g < GRAPHS; g++) {
+            WorkflowGraph<WorkflowStep> graph = createRandomGraph(random);
+            List<WorkflowStep> sortedSteps = graph.getSortedSteps();
+
+            // the rows come back from the db in no particular order
+            List<StepTableLoader.Dependency> rows = new ArrayList<StepTableLoader.Dependency>(
+                    StepTableLoader.getDependencies(sortedSteps).values());
+            Collections.shuffle(rows, random);
+
+            // as readFromDb creates the steps, in depth first order
+            WorkflowGraph<WorkflowStep> copy = new WorkflowGraph<WorkflowStep>();
+            Map<Integer, WorkflowStep> copiesById = new HashMap<Integer, WorkflowStep>();
+            for (WorkflowStep step : sortedSteps) {
+                WorkflowStep copied = new WorkflowStep();
+                copied.setName(step.getFullName());
+                copied.workflow_step_id = step.getId();
+                copy.addStep(copied);
+                copiesById.put(copied.getId(), copied);
+            }
+            WorkflowGraph.linkDependencies(copiesById, rows);
+            copy.setRootsAndLeafs();
+
+            Assert.assertEquals("graph " + g, names(sortedSteps), names(copy.getSortedSteps()));
+            for (WorkflowStep step : sortedSteps) {
+                WorkflowStep copied = copiesById.get(step.getId());
+                String name = "graph " + g + " " + step.getFullName();
+                Assert.assertEquals(name, names(step.getChildren()), names(copied.getChildren()));
+                Assert.assertEquals(name, names(step.getParents()), names(copied.getParents()));
+            }
+        }
+    }
+
+    // a dag: each step's kids come later in a random order of the steps.
+    // each step's children, and each step's parents, are linked in random
+    // orders, so neither follows the depth first order
+    private static WorkflowGraph<WorkflowStep> createRandomGraph(Random random) throws IOException {
+        WorkflowGraph<WorkflowStep> graph = new WorkflowGraph<WorkflowStep>();
+        int size = 1 + random.nextInt(MAX_STEPS);
+        double edgeChance = random.nextDouble() * 4 / size;
+        List<WorkflowStep> steps = new ArrayList<WorkflowStep>();
+        for (int i = 0; i < size; i++) {
+            WorkflowStep step = new WorkflowStep();
+            step.setName("step" + i);
+            step.workflow_step_id = 100 + i;
+            steps.add(step);
+        }
+
+        List<WorkflowStep> rank = new ArrayList<WorkflowStep>(steps);
+        Collections.shuffle(rank, random);
+        List<WorkflowStep[]> links = new ArrayList<WorkflowStep[]>();
+        for (int i = 0; i < size; i++)
+            for (int j = i + 1; j < size; j++)
+                if (random.nextDouble() < edgeChance) links.add(new WorkflowStep[] { rank.get(i), rank.get(j) });
+        Collections.shuffle(links, random);
+        for (WorkflowStep[] link : links) link[0].addChild(link[1]);
+        Collections.shuffle(links, random);
+        for (WorkflowStep[] link : links) link[1].addParent(link[0]);
+
+        for (WorkflowStep step : steps) graph.addStep(step);
+        graph.setRootsAndLeafs();
+        return graph;
+    }
+
+    private static List<String> names(List<WorkflowStep> steps) {
+        List<String> names = new ArrayList<String>();
+        for (WorkflowStep step : steps) names.add(step.getFullName());
+        return names;
+    }
+}
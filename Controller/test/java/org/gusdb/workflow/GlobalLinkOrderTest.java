@@ -0,0 +1,166 @@
+package org.gusdb.workflow;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import junit.framework.Assert;
+
+import org.gusdb.fgputil.xml.Name;
+import org.gusdb.workflow.xml.WorkflowClassFactory;
+import org.junit.Test;
+
+/*
+ * Sibling subgraphs are expanded in parallel, and link to the global graph's
+ * steps as they go.  The order of those steps' children is part of the depth
+ * first order, which is persisted, so it must not depend on the number of
+ * threads, or on their timing:  it must be the order the sequential expansion
+ * made them in.
+ */
+public class GlobalLinkOrderTest {
+
+    private static final int PARALLEL_RUNS = 20;
+
+    // the graph files, as they'd be parsed.  each step is
+    // { name, subgraph xml file, depends, dependsGlobal }.  a "*" before a
+    // name makes it a <globalSubgraph>
+    private static final Map<String, String[][]> FILES = new HashMap<String, String[][]>();
+    static {
+        FILES.put("root.xml", new String[][] {
+            { "*global", "global.xml", "", "" },
+            { "r1", null, "", "g1" },
+            { "subA", "a.xml", "r1", "" },
+            { "subB", "b.xml", "r1", "g2" },
+            { "subC", "a.xml", "", "" },
+            { "r2", null, "subA,subB", "g2,gsub" },
+            { "subD", "m.xml", "r2", "" },
+        });
+        FILES.put("global.xml", new String[][] {
+            { "g1", null, "", "" },
+            { "g2", null, "g1", "" },
+            { "gsub", "m.xml", "g2", "" },
+        });
+        FILES.put("a.xml", new String[][] {
+            { "a1", null, "", "g1" },
+            { "nest1", "n.xml", "a1", "" },
+            { "nest2", "n.xml", "", "g2" },
+            { "a2", null, "nest1", "g2" },
+        });
+        FILES.put("b.xml", new String[][] {
+            { "b1", null, "", "gsub" },
+            { "nest", "n.xml", "b1", "" },
+        });
+        FILES.put("n.xml", new String[][] {
+            { "n1", null, "", "g1,gsub" },
+            { "deeper", "m.xml", "n1", "" },
+            { "n2", null, "", "g2" },
+        });
+        FILES.put("m.xml", new String[][] {
+            { "m1", null, "", "g1" },
+            { "m2", null, "m1", "g2" },
+        });
+    }
+
+    // getSortedSteps() of the graph above, from the expansion before sibling
+    // subgraphs were expanded in parallel
+    private static final List<String> SEQUENTIAL_ORDER = Arrays.asList(
+        "global", "global.g1", "global.g2", "global.gsub",
+        "global.gsub.m1", "global.gsub.m2", "global.gsub.return", "r2",
+        "subD", "subD.m1", "subD.m2", "subD.return",
+        "global.return", "subA.nest1.n1", "subA.nest1.deeper", "subA.nest1.deeper.m1",
+        "subA.nest1.deeper.m2", "subA.nest1.deeper.return", "subA.nest1.return", "subA.a2",
+        "subA.return", "subA.nest2.n1", "subA.nest2.deeper", "subA.nest2.deeper.m1",
+        "subA.nest2.deeper.m2", "subA.nest2.deeper.return", "subA.nest2.return", "subB.nest.n1",
+        "subB.nest.deeper", "subB.nest.deeper.m1", "subB.nest.deeper.m2", "subB.nest.deeper.return",
+        "subB.nest.return", "subB.return", "subB.b1", "subB.nest",
+        "subB.nest.n2", "subC.nest1.n1", "subC.nest1.deeper", "subC.nest1.deeper.m1",
+        "subC.nest1.deeper.m2", "subC.nest1.deeper.return", "subC.nest1.return", "subC.a2",
+        "subC.return", "subC.nest2.n1", "subC.nest2.deeper", "subC.nest2.deeper.m1",
+        "subC.nest2.deeper.m2", "subC.nest2.deeper.return", "subC.nest2.return", "subB",
+        "subA.nest1.n2", "subA.nest2", "subA.nest2.n2", "subC.nest1.n2",
+        "subC.nest2", "subC.nest2.n2", "r1", "subA",
+        "subA.a1", "subA.nest1", "subC.a1", "subC.nest1",
+        "subC");
+
+    private final Random random = new Random(20261018);
+
+    @Test
+    public void testSameOrderAsSequentialExpansion() throws Exception {
+        String threads = System.getProperty(ParallelExpansion.THREADS_PROPERTY);
+        WorkflowGraphUtil.GraphReader reader = WorkflowGraphUtil.graphReader;
+        WorkflowGraphUtil.graphReader = new TestGraphReader();
+        try {
+            System.setProperty(ParallelExpansion.THREADS_PROPERTY, "1");
+            Assert.assertEquals(SEQUENTIAL_ORDER, expand());
+
+            System.setProperty(ParallelExpansion.THREADS_PROPERTY, "4");
+            for (int run = 0; run < PARALLEL_RUNS; run++)
+                Assert.assertEquals("run " + run, SEQUENTIAL_ORDER, expand());
+        }
+        finally {
+            WorkflowGraphUtil.graphReader = reader;
+            if (threads == null) System.clearProperty(ParallelExpansion.THREADS_PROPERTY);
+            else System.setProperty(ParallelExpansion.THREADS_PROPERTY, threads);
+        }
+    }
+
+    private static List<String> expand() throws Exception {
+        WorkflowGraph<WorkflowStep> graph = WorkflowGraphUtil.createExpandedGraph(new StepClassFactory(),
+                null, new HashMap<String, Map<String, List<String>>>(),
+                new HashMap<String, WorkflowStep>(), new LinkedHashMap<String, String>(),
+                "root.xml", "rootParams.prop", null, false, "", "root",
+                new HashMap<String, String>(), new HashMap<String, String>(), null,
+                new ArrayList<String>());
+        List<String> names = new ArrayList<String>();
+        for (WorkflowStep step : graph.getSortedSteps()) names.add(step.getFullName());
+        return names;
+    }
+
+    private static class StepClassFactory implements WorkflowClassFactory<WorkflowStep, WorkflowGraph<WorkflowStep>> {
+        @SuppressWarnings("unchecked")
+        @Override
+        public Class<WorkflowGraph<WorkflowStep>> getContainerClass() {
+            return (Class<WorkflowGraph<WorkflowStep>>)(Class<?>)WorkflowGraph.class;
+        }
+        @Override
+        public Class<WorkflowStep> getStepClass() {
+            return WorkflowStep.class;
+        }
+    }
+
+    // builds FILES' graphs as the parser would, taking a moment to do it, so
+    // the expansion threads finish in no particular order
+    private class TestGraphReader implements WorkflowGraphUtil.GraphReader {
+        @Override
+        public <S extends WorkflowStep> WorkflowGraph<S> read(
+                WorkflowClassFactory<S, WorkflowGraph<S>> classFactory,
+                String xmlFileName, String callerXmlFileName) throws Exception {
+            int delay;
+            synchronized (random) {
+                delay = random.nextInt(5);
+            }
+            Thread.sleep(delay);
+
+            WorkflowGraph<S> graph = classFactory.getContainerClass().getDeclaredConstructor().newInstance();
+            for (String[] row : FILES.get(xmlFileName)) {
+                S step = classFactory.getStepClass().getDeclaredConstructor().newInstance();
+                step.setName(row[0].replace("*", ""));
+                if (row[1] != null) step.setXmlFile(row[1]);
+                for (String name : names(row[2])) step.addDependsName(new Name(name));
+                for (String name : names(row[3])) step.addDependsGlobalName(new Name(name));
+                if (row[0].startsWith("*")) graph.addGlobalStep(step);
+                else graph.addStep(step);
+            }
+            graph.setXmlFileName(xmlFileName);
+            return graph;
+        }
+    }
+
+    private static List<String> names(String names) {
+        return names.isEmpty() ? new ArrayList<String>() : Arrays.asList(names.split(","));
+    }
+}
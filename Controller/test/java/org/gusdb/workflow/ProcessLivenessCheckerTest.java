@@ -0,0 +1,68 @@
+package org.gusdb.workflow;
+
+import java.io.IOException;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+
+public class ProcessLivenessCheckerTest {
+
+    private static final String STEP_NAME = "subgraph.step";
+
+    // a process that looks like the step's wrapper: sh's arguments are
+    // workflowRunStep's.  (the "; exit" stops sh exec'ing sleep in its place)
+    private static Process startWrapper(String stepName) throws IOException {
+        return new ProcessBuilder("sh", "-c", "sleep 30; exit 0", "bin/workflowRunStep",
+                "/home/workflow", "1", stepName, "123").start();
+    }
+
+    private static String pid(Process process) {
+        return String.valueOf(process.pid());
+    }
+
+    @Test
+    public void testWrapper() throws IOException {
+        Process wrapper = startWrapper(STEP_NAME);
+        try {
+            ProcessLivenessChecker checker = new ProcessLivenessChecker();
+            for (int cycle = 0; cycle < 3; cycle++) {
+                checker.startCycle();
+                Assert.assertTrue(checker.isAlive(STEP_NAME, pid(wrapper)));
+            }
+        }
+        finally {
+            wrapper.destroyForcibly();
+        }
+    }
+
+    // eg, the controller restarts, and the step's wrapper died and its pid
+    // went to another process before we first looked
+    @Test
+    public void testRecycledPid() throws IOException {
+        Process other = new ProcessBuilder("sleep", "30").start();
+        Process otherStepsWrapper = startWrapper("subgraph.otherStep");
+        try {
+            ProcessLivenessChecker checker = new ProcessLivenessChecker();
+            checker.startCycle();
+            Assert.assertFalse(checker.isAlive(STEP_NAME, pid(other)));
+            Assert.assertFalse(checker.isAlive(STEP_NAME, pid(otherStepsWrapper)));
+        }
+        finally {
+            other.destroyForcibly();
+            otherStepsWrapper.destroyForcibly();
+        }
+    }
+
+    @Test
+    public void testDeadProcess() throws IOException, InterruptedException {
+        Process wrapper = startWrapper(STEP_NAME);
+        ProcessLivenessChecker checker = new ProcessLivenessChecker();
+        checker.startCycle();
+        Assert.assertTrue(checker.isAlive(STEP_NAME, pid(wrapper)));
+        wrapper.destroyForcibly().waitFor();
+        checker.startCycle();
+        Assert.assertFalse(checker.isAlive(STEP_NAME, pid(wrapper)));
+        Assert.assertFalse(checker.isAlive(STEP_NAME, null));
+    }
+}
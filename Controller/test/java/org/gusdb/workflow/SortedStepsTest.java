@@ -0,0 +1,77 @@
+package org.gusdb.workflow;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+
+public class SortedStepsTest {
+
+    private static final int GRAPHS = 500;
+    private static final int MAX_STEPS = 60;
+
+    // getSortedSteps must list the steps in the same order as the recursive
+    // walk it replaced, since that order is persisted as depth_first_order
+    // and compared with the db's on start up
+    @Test
+    public void testSameOrderAsRecursiveWalk() throws IOException {
+        Random random = new Random(20261018);
+        for (int g = 0; g < GRAPHS; g++) {
+            WorkflowGraph<WorkflowStep> graph = createRandomGraph(random);
+
+            List<WorkflowStep> expected = new ArrayList<WorkflowStep>();
+            for (WorkflowStep rootStep : graph.getRootSteps())
+                addToList(rootStep, expected);
+
+            List<WorkflowStep> sortedSteps = graph.getSortedSteps();
+            Assert.assertEquals("graph " + g, expected, sortedSteps);
+            for (int i = 0; i < sortedSteps.size(); i++)
+                Assert.assertEquals("graph " + g, i, sortedSteps.get(i).getDepthFirstOrder());
+        }
+    }
+
+    // a dag: each step's kids come later in a random order of the steps, and
+    // are added to it in random order
+    private static WorkflowGraph<WorkflowStep> createRandomGraph(Random random) throws IOException {
+        WorkflowGraph<WorkflowStep> graph = new WorkflowGraph<WorkflowStep>();
+        int size = 1 + random.nextInt(MAX_STEPS);
+        double edgeChance = random.nextDouble() * 4 / size;
+        List<WorkflowStep> steps = new ArrayList<WorkflowStep>();
+        for (int i = 0; i < size; i++) {
+            WorkflowStep step = new WorkflowStep();
+            step.setName("step" + i);
+            steps.add(step);
+        }
+
+        List<WorkflowStep> rank = new ArrayList<WorkflowStep>(steps);
+        Collections.shuffle(rank, random);
+        for (int i = 0; i < size; i++) {
+            List<WorkflowStep> kids = new ArrayList<WorkflowStep>();
+            for (int j = i + 1; j < size; j++)
+                if (random.nextDouble() < edgeChance) kids.add(rank.get(j));
+            Collections.shuffle(kids, random);
+            for (WorkflowStep kid : kids) {
+                rank.get(i).addChild(kid);
+                kid.addParent(rank.get(i));
+            }
+        }
+
+        for (WorkflowStep step : steps) graph.addStep(step);
+        graph.setRootsAndLeafs();
+        return graph;
+    }
+
+    // the recursive walk getSortedSteps replaced (less its cycle check, since
+    // these graphs have no cycles)
+    private static void addToList(WorkflowStep step, List<WorkflowStep> list) {
+        if (list.contains(step)) return;
+        list.add(step);
+        for (WorkflowStep child : step.getChildren())
+            addToList(child, list);
+    }
+}
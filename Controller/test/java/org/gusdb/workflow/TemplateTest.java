@@ -0,0 +1,106 @@
+package org.gusdb.workflow;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.regex.Matcher;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+
+public class TemplateTest {
+
+    private static final int RANDOM_STRINGS = 50000;
+
+    // strings, and values for them, where pairing delimiters left to right
+    // would not find what the regex per variable found
+    private static final String[][] CASES = {
+        { "$$a$$", "a", "A" },
+        { "x$$a$$y$$b$$z", "a", "A", "b", "B" },
+        { "$$a$$$$b$$", "a", "A", "b", "B" },
+        { "$$$a$$", "a", "A" },
+        { "$$$$a$$", "a", "A" },
+        { "$$a$$$", "a", "A" },
+        { "$$ $$a$$", "a", "A" },
+        { "$$x$$a$$", "a", "A" },
+        { "$$x$$a$$", "x", "X" },
+        { "$$x$$a$$", "x", "X", "a", "A" },
+        { "$$a$$a$$", "a", "A" },
+        { "$$a$$a$$a$$", "a", "A" },
+        { "$$a", "a", "A" },
+        { "a$$", "a", "A" },
+        { "$$$$", "a", "A" },
+        { "$$unknown$$ and $$a$$", "a", "A" },
+        { "$$a$$ and $$unknown", "a", "A" },
+        { "$$a$$", "a", "$$b$$", "b", "B" },
+        { "$$b$$", "a", "$$b$$", "b", "B" },
+        { "$$a$$", "a", "$" },
+        { "$$a$$$b$$", "a", "$", "b", "B" },
+        { "$$a$$$b$$", "b", "B", "a", "$" },
+        { "$$x$$$$b$$$$y$$", "b", "a", "xay", "Q" },
+        { "$$m$$x$$a$$y$$", "m", "M", "a", "", "xy", "Q" },
+        { "$$m$$x$$a$$y$$", "a", "", "xy", "Q", "m", "M" },
+        { "$$$a$$$", "a", "" },
+    };
+
+    @Test
+    public void testCases() {
+        for (String[] c : CASES) {
+            Map<String, String> variables = new LinkedHashMap<String, String>();
+            for (int i = 1; i < c.length; i += 2) variables.put(c[i], c[i + 1]);
+            assertSameAsReplaceAll(c[0], variables);
+        }
+    }
+
+    // random strings of delimiters, stray delimiter characters, names and
+    // text, with values that have those too
+    @Test
+    public void testRandomStrings() {
+        String[] pieces = { "$", "$$", "a", "b", "x", "ab", "/", "$$a$$", "$$b$$" };
+        String[] names = { "a", "b", "x", "ab", "xa", "ba" };
+        String[] values = { "", "a", "b", "x", "Q", "$", "$$", "$$a$$", "/", "$b" };
+        Random random = new Random(20261018);
+        for (int i = 0; i < RANDOM_STRINGS; i++) {
+            StringBuilder string = new StringBuilder();
+            int length = random.nextInt(12);
+            for (int j = 0; j < length; j++) string.append(pieces[random.nextInt(pieces.length)]);
+
+            List<String> shuffled = new ArrayList<String>(Arrays.asList(names));
+            Collections.shuffle(shuffled, random);
+            Map<String, String> variables = new LinkedHashMap<String, String>();
+            int count = random.nextInt(names.length);
+            for (int j = 0; j < count; j++)
+                variables.put(shuffled.get(j), values[random.nextInt(values.length)]);
+            assertSameAsReplaceAll(string.toString(), variables);
+        }
+    }
+
+    @Test
+    public void testMacros() {
+        Map<String, String> macros = new LinkedHashMap<String, String>();
+        macros.put("a", "A");
+        macros.put("b", "@");
+        for (String string : new String[] { "@@a@@", "@@@a@@", "@@x@@a@@", "@@b@@@a@@", "$$a$$" }) {
+            String expected = string;
+            for (String name : macros.keySet())
+                expected = expected.replaceAll("\\@\\@" + name + "\\@\\@",
+                        Matcher.quoteReplacement(macros.get(name)));
+            Assert.assertEquals(string, expected, Utilities.substituteMacrosIntoString(string, macros));
+        }
+    }
+
+    // what substituteVariablesIntoString did before it used Template
+    private static void assertSameAsReplaceAll(String string, Map<String, String> variables) {
+        String expected = string;
+        for (String name : variables.keySet())
+            expected = expected.replaceAll("\\$\\$" + name + "\\$\\$",
+                    Matcher.quoteReplacement(variables.get(name)));
+        Assert.assertEquals(string + " " + variables, expected,
+                Utilities.substituteVariablesIntoString(string, variables, "test", false, "string", null));
+    }
+}
@@ -2,21 +2,23 @@ package org.gusdb.workflow.xml;
 
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.URL;
+import java.util.ArrayList;
 import java.util.Collections;
+import java.util.List;
 import java.util.Map;
-import java.util.regex.Matcher;
+import java.util.concurrent.ConcurrentHashMap;
 
+import javax.xml.XMLConstants;
 import javax.xml.parsers.ParserConfigurationException;
-import javax.xml.transform.Result;
-import javax.xml.transform.Source;
-import javax.xml.transform.Transformer;
+import javax.xml.parsers.SAXParserFactory;
 import javax.xml.transform.TransformerException;
-import javax.xml.transform.TransformerFactory;
-import javax.xml.transform.dom.DOMSource;
-import javax.xml.transform.stream.StreamResult;
+import javax.xml.validation.Schema;
+import javax.xml.validation.SchemaFactory;
+import javax.xml.validation.ValidatorHandler;
 
 import org.apache.commons.digester3.Digester;
 import org.apache.log4j.Logger;
@@ -25,8 +27,15 @@ import org.gusdb.fgputil.xml.Name;
 import org.gusdb.fgputil.xml.NamedValue;
 import org.gusdb.fgputil.xml.XmlParser;
 import org.gusdb.fgputil.xml.XmlValidator;
-import org.w3c.dom.Document;
+import org.xml.sax.Attributes;
+import org.xml.sax.ContentHandler;
+import org.xml.sax.ErrorHandler;
+import org.xml.sax.InputSource;
 import org.xml.sax.SAXException;
+import org.xml.sax.SAXParseException;
+import org.xml.sax.XMLReader;
+import org.xml.sax.helpers.AttributesImpl;
+import org.xml.sax.helpers.XMLFilterImpl;
 
 /**
  * Parses an XML workflow specification into a usable workflow.  The constructor takes a class factory that
@@ -42,6 +51,48 @@ public class WorkflowXmlParser<S extends WorkflowNode, T extends WorkflowXmlCont
   @SuppressWarnings("unused")
   private static final Logger logger = Logger.getLogger(WorkflowXmlParser.class);
 
+  /*
+   * The bytes of each file parsed so far, by file path.  A subgraph file is
+   * called from many places; it is read and validated only the first time (or
+   * after it changes on disk).  Each call then gets its own fresh objects by
+   * running the digester over the cached bytes, which is our deep copy of the
+   * parsed, pre-expansion graph.
+   *
+   * Parsing is a single SAX pass: the reader's events go through the shared
+   * schema's ValidatorHandler (first time only) straight to the digester.
+   * There is no DOM, and no re-serialization.
+   */
+  private static class ParsedFile {
+    final long lastModified;
+    final byte[] content;
+
+    ParsedFile(long lastModified, byte[] content) {
+      this.lastModified = lastModified;
+      this.content = content;
+    }
+  }
+
+  private static final Map<String, ParsedFile> _parsedFiles = new ConcurrentHashMap<>();
+
+  /*
+   * workflow.rng, compiled once per JVM (and again only if it changes).  A
+   * Schema is thread safe; each parse gets its own ValidatorHandler from it,
+   * so parallel parses validate at the same time.  schema is null if JAXP
+   * has no RELAX NG support, in which case each thread keeps an XmlValidator.
+   */
+  private static class CompiledSchema {
+    final long lastModified;
+    final Schema schema;
+
+    CompiledSchema(long lastModified, Schema schema) {
+      this.lastModified = lastModified;
+      this.schema = schema;
+    }
+  }
+
+  private static CompiledSchema _compiledSchema;
+  private static final ThreadLocal<XmlValidator> _xmlValidators = new ThreadLocal<>();
+
   private final Digester _digester;
 
   public WorkflowXmlParser(WorkflowClassFactory<S,T> classFactory) {
@@ -56,31 +107,236 @@ public class WorkflowXmlParser<S extends WorkflowNode, T extends WorkflowXmlCont
   public T parseWorkflow(String xmlFileName, String callerXmlFileName, boolean useGusHome)
       throws SAXException, IOException, ParserConfigurationException, TransformerException {
 
-    // construct urls to model file, prop file, and config file
-    URL modelURL = makeURL(useGusHome ? GusHome.getGusHome() + "/lib/xml/workflow/" + xmlFileName : xmlFileName);
-
-    XmlValidator validator = new XmlValidator(GusHome.getGusHome() + "/lib/rng/workflow.rng");
-    if (!validator.validate(modelURL)) {
-      System.err.println("Called from: " + callerXmlFileName);
-      System.exit(1);
-    }
-
-    Document doc = buildDocument(modelURL);
+    String path = useGusHome ? GusHome.getGusHome() + "/lib/xml/workflow/" + xmlFileName : xmlFileName;
+    URL url = makeURL(path);
+    long lastModified = new File(path).lastModified(); // 0 if not a plain file; don't cache those
+    ParsedFile parsed = _parsedFiles.get(path);
+    boolean validate = parsed == null || parsed.lastModified != lastModified || lastModified == 0;
+    if (validate) parsed = new ParsedFile(lastModified, readBytes(url));
 
     System.err.println("Parsing " + xmlFileName);
-    // currently there is no property substitution in ReFlow; leaving here in case we want to add later
-    Map<String,String> substitutionProperties = Collections.emptyMap();
-    T workflowGraph = parseXml(doc, substitutionProperties);
+    T workflowGraph = parseXml(parsed.content, url, validate ? callerXmlFileName : null);
+    if (validate && lastModified != 0) _parsedFiles.put(path, parsed);
 
     workflowGraph.setXmlFileName(xmlFileName);
     return workflowGraph;
   }
 
+  private static byte[] readBytes(URL url) throws IOException {
+    try (InputStream in = url.openStream()) {
+      ByteArrayOutputStream out = new ByteArrayOutputStream();
+      byte[] buf = new byte[65536];
+      int n;
+      while ((n = in.read(buf)) > 0) out.write(buf, 0, n);
+      return out.toByteArray();
+    }
+  }
+
+  // run the digester over content in one SAX pass.  if callerXmlFileName is
+  // not null, validate against the schema on the way; on failure, report the
+  // caller and exit, as before
   @SuppressWarnings("unchecked")
-  private T parseXml(Document doc, Map<String, String> properties) throws TransformerException, IOException,
-      SAXException {
-    InputStream xmlStream = substituteProps(doc, properties);
-    return (T) _digester.parse(xmlStream);
+  private T parseXml(byte[] content, URL url, String callerXmlFileName)
+      throws IOException, SAXException, ParserConfigurationException {
+
+    boolean validate = callerXmlFileName != null;
+    SchemaErrors errors = new SchemaErrors(true);
+    ContentHandler handler = _digester;
+
+    if (validate) {
+      Schema schema = getSchema();
+      if (schema == null) {
+        // no RELAX NG support in this JAXP; validate separately
+        if (!getXmlValidator().validate(url)) exitInvalid(callerXmlFileName);
+      }
+      else {
+        ValidatorHandler validatorHandler = schema.newValidatorHandler();
+        validatorHandler.setErrorHandler(errors);
+        validatorHandler.setContentHandler(handler);
+        handler = validatorHandler;
+      }
+    }
+
+    // currently there is no property substitution in ReFlow; leaving here in case we want to add later.
+    // (if added, the properties must become part of the cache key)
+    Map<String,String> substitutionProperties = Collections.emptyMap();
+
+    XMLReader reader = newReader();
+    if (!substitutionProperties.isEmpty()) {
+      PropertySubstitutionFilter filter = new PropertySubstitutionFilter(substitutionProperties);
+      filter.setParent(reader);
+      reader = filter;
+    }
+    reader.setContentHandler(handler);
+    reader.setErrorHandler(errors);
+
+    InputSource source = new InputSource(new ByteArrayInputStream(content));
+    source.setSystemId(url.toString());
+    _digester.clear();
+    try {
+      reader.parse(source);
+    }
+    catch (SAXException e) {
+      if (validate && errors.failed) exitInvalid(callerXmlFileName);
+      throw e;
+    }
+    return (T) _digester.getRoot();
+  }
+
+  private static void exitInvalid(String callerXmlFileName) {
+    System.err.println("Called from: " + callerXmlFileName);
+    System.exit(1);
+  }
+
+  private static XMLReader newReader() throws SAXException, ParserConfigurationException {
+    SAXParserFactory factory = SAXParserFactory.newInstance();
+    factory.setNamespaceAware(true);
+    return factory.newSAXParser().getXMLReader();
+  }
+
+  /**
+   * Checks a workflow XML file against workflow.rng, without building a graph.
+   * May be called from several threads at once.
+   *
+   * @param path file to check
+   * @return the problems found (empty if the file is valid)
+   */
+  public static List<String> validate(String path)
+      throws SAXException, IOException, ParserConfigurationException {
+    URL url = new File(path).toURI().toURL();
+    Schema schema = getSchema();
+    if (schema == null) {
+      // XmlValidator reports the problems itself
+      return getXmlValidator().validate(url) ? Collections.<String>emptyList()
+          : Collections.singletonList("Error: " + path + " is not valid");
+    }
+    SchemaErrors errors = new SchemaErrors(false);
+    ValidatorHandler validatorHandler = schema.newValidatorHandler();
+    validatorHandler.setErrorHandler(errors);
+    XMLReader reader = newReader();
+    reader.setContentHandler(validatorHandler);
+    reader.setErrorHandler(errors);
+    try {
+      reader.parse(url.toString());
+    }
+    catch (SAXParseException e) {
+      // not well formed; already in errors
+    }
+    return errors.messages;
+  }
+
+  // the shared compiled workflow.rng, or null if JAXP has no RELAX NG schema factory
+  private static synchronized Schema getSchema() throws SAXException {
+    File rngFile = new File(GusHome.getGusHome() + "/lib/rng/workflow.rng");
+    long lastModified = rngFile.lastModified();
+    if (_compiledSchema == null || _compiledSchema.lastModified != lastModified) {
+      Schema schema = null;
+      try {
+        schema = SchemaFactory.newInstance(XMLConstants.RELAXNG_NS_URI).newSchema(rngFile);
+      }
+      catch (IllegalArgumentException e) {
+        // no RELAX NG schema factory
+      }
+      _compiledSchema = new CompiledSchema(lastModified, schema);
+    }
+    return _compiledSchema.schema;
+  }
+
+  private static XmlValidator getXmlValidator() throws SAXException, IOException {
+    XmlValidator validator = _xmlValidators.get();
+    if (validator == null) {
+      validator = new XmlValidator(GusHome.getGusHome() + "/lib/rng/workflow.rng");
+      _xmlValidators.set(validator);
+    }
+    return validator;
+  }
+
+  /*
+   * reports each problem the way the validator did.  when parsing, stops at
+   * the first one, so the digester never sees an invalid document.  when only
+   * validating, collects them all (up to the first well-formedness error)
+   */
+  private static class SchemaErrors implements ErrorHandler {
+    final boolean stopAtFirst;
+    final List<String> messages = new ArrayList<>();
+    boolean failed = false;
+
+    SchemaErrors(boolean stopAtFirst) {
+      this.stopAtFirst = stopAtFirst;
+    }
+
+    @Override
+    public void warning(SAXParseException e) {
+      System.err.println(describe("Warning", e));
+    }
+
+    @Override
+    public void error(SAXParseException e) throws SAXException {
+      failed = true;
+      if (stopAtFirst) {
+        System.err.println(describe("Error", e));
+        throw e;
+      }
+      messages.add(describe("Error", e));
+    }
+
+    @Override
+    public void fatalError(SAXParseException e) throws SAXException {
+      error(e);
+      throw e;
+    }
+
+    private static String describe(String level, SAXParseException e) {
+      return level + ": " + e.getSystemId() + " line " + e.getLineNumber()
+          + ", column " + e.getColumnNumber() + ": " + e.getMessage();
+    }
+  }
+
+  /*
+   * substitutes @name@ property macros in attribute values and text, as the
+   * events go by.  text can arrive in pieces, so it is held until the next
+   * element event, and substituted as a whole
+   */
+  private static class PropertySubstitutionFilter extends XMLFilterImpl {
+    private final Map<String,String> _properties;
+    private final StringBuilder _text = new StringBuilder();
+
+    PropertySubstitutionFilter(Map<String,String> properties) {
+      _properties = properties;
+    }
+
+    private String substitute(String value) {
+      for (Map.Entry<String,String> prop : _properties.entrySet())
+        value = value.replace("@" + prop.getKey() + "@", prop.getValue());
+      return value;
+    }
+
+    private void flushText() throws SAXException {
+      if (_text.length() == 0) return;
+      char[] chars = substitute(_text.toString()).toCharArray();
+      _text.setLength(0);
+      super.characters(chars, 0, chars.length);
+    }
+
+    @Override
+    public void characters(char[] ch, int start, int length) {
+      _text.append(ch, start, length);
+    }
+
+    @Override
+    public void startElement(String uri, String localName, String qName, Attributes atts) throws SAXException {
+      flushText();
+      AttributesImpl substituted = new AttributesImpl(atts);
+      for (int i = 0; i < substituted.getLength(); i++)
+        substituted.setValue(i, substitute(substituted.getValue(i)));
+      super.startElement(uri, localName, qName, substituted);
+    }
+
+    @Override
+    public void endElement(String uri, String localName, String qName) throws SAXException {
+      flushText();
+      super.endElement(uri, localName, qName);
+    }
   }
 
   private Digester configureDigester(WorkflowClassFactory<S,T> classFactory) {
@@ -128,25 +384,4 @@ public class WorkflowXmlParser<S extends WorkflowNode, T extends WorkflowXmlCont
     return digester;
   }
 
-  private static InputStream substituteProps(Document masterDoc, Map<String, String> properties)
-      throws TransformerException {
-    ByteArrayOutputStream out = new ByteArrayOutputStream();
-
-    // transform the DOM doc to a string
-    Source source = new DOMSource(masterDoc);
-    Result result = new StreamResult(out);
-    Transformer transformer = TransformerFactory.newInstance().newTransformer();
-    transformer.transform(source, result);
-    String content = new String(out.toByteArray());
-
-    // substitute prop macros
-    for (String propName : properties.keySet()) {
-      String propValue = properties.get(propName);
-      content = content.replaceAll("\\@" + propName + "\\@", Matcher.quoteReplacement(propValue));
-    }
-
-    // construct input stream
-    return new ByteArrayInputStream(content.getBytes());
-  }
-
 }